@@ -0,0 +1,311 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.admin.PulsarAdmin;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.apache.pulsar.functions.api.Context;
+import org.apache.pulsar.functions.api.Record;
+import org.slf4j.Logger;
+
+/**
+ * The function context of the benchmarks. The output messages are dropped and their sends complete
+ * immediately, so that the asynchronous send modes never wait for a broker. The metrics recorded by
+ * the function are ignored.
+ */
+final class BenchmarkContext implements Context {
+
+  private static final CompletableFuture<MessageId> SENT = CompletableFuture.completedFuture(null);
+
+  private final Map<String, Object> userConfig;
+  private volatile Record<?> currentRecord;
+  private volatile TypedMessageBuilder<?> outputMessage;
+
+  BenchmarkContext(Map<String, Object> userConfig) {
+    this.userConfig = userConfig;
+  }
+
+  void setCurrentRecord(Record<?> currentRecord) {
+    this.currentRecord = currentRecord;
+  }
+
+  /** Returns the last output message, for the benchmarks to consume. */
+  TypedMessageBuilder<?> getOutputMessage() {
+    return outputMessage;
+  }
+
+  @Override
+  public Record<?> getCurrentRecord() {
+    return currentRecord;
+  }
+
+  @Override
+  public Collection<String> getInputTopics() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public String getOutputTopic() {
+    return "benchmark-output";
+  }
+
+  @Override
+  public String getOutputSchemaType() {
+    return null;
+  }
+
+  @Override
+  public String getFunctionName() {
+    return "benchmark";
+  }
+
+  @Override
+  public String getFunctionId() {
+    return "benchmark";
+  }
+
+  @Override
+  public String getFunctionVersion() {
+    return null;
+  }
+
+  @Override
+  public Map<String, Object> getUserConfigMap() {
+    return userConfig;
+  }
+
+  @Override
+  public Optional<Object> getUserConfigValue(String key) {
+    return Optional.ofNullable(userConfig.get(key));
+  }
+
+  @Override
+  public Object getUserConfigValueOrDefault(String key, Object defaultValue) {
+    return userConfig.getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public <X> TypedMessageBuilder<X> newOutputMessage(String topicName, Schema<X> schema) {
+    OutputMessage<X> message = new OutputMessage<>();
+    outputMessage = message;
+    return message;
+  }
+
+  @Override
+  public void recordMetric(String metricName, double value) {}
+
+  @Override
+  public String getTenant() {
+    return null;
+  }
+
+  @Override
+  public String getNamespace() {
+    return null;
+  }
+
+  @Override
+  public int getInstanceId() {
+    return 0;
+  }
+
+  @Override
+  public int getNumInstances() {
+    return 1;
+  }
+
+  @Override
+  public Logger getLogger() {
+    return null;
+  }
+
+  @Override
+  public String getSecret(String secretName) {
+    return null;
+  }
+
+  @Override
+  public PulsarAdmin getPulsarAdmin() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <X> CompletableFuture<Void> publish(
+      String topicName, X object, String schemaOrSerdeClassName) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <X> CompletableFuture<Void> publish(String topicName, X object) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <X> ConsumerBuilder<X> newConsumerBuilder(Schema<X> schema) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void putState(String key, ByteBuffer value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public CompletableFuture<Void> putStateAsync(String key, ByteBuffer value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ByteBuffer getState(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public CompletableFuture<ByteBuffer> getStateAsync(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void deleteState(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteStateAsync(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void incrCounter(String key, long amount) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public CompletableFuture<Void> incrCounterAsync(String key, long amount) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getCounter(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public CompletableFuture<Long> getCounterAsync(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  /** An output message that keeps its value and key, for the benchmarks to consume. */
+  private static final class OutputMessage<T> implements TypedMessageBuilder<T> {
+    private T value;
+    private String key;
+    private byte[] keyBytes;
+
+    @Override
+    public MessageId send() {
+      return null;
+    }
+
+    @Override
+    public CompletableFuture<MessageId> sendAsync() {
+      return SENT;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> key(String key) {
+      this.key = key;
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> keyBytes(byte[] key) {
+      this.keyBytes = key;
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> orderingKey(byte[] orderingKey) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> value(T value) {
+      this.value = value;
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> property(String name, String value) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> properties(Map<String, String> properties) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> eventTime(long timestamp) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> sequenceId(long sequenceId) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> replicationClusters(List<String> clusters) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> disableReplication() {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> deliverAt(long timestamp) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> deliverAfter(long delay, TimeUnit unit) {
+      return this;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> loadConf(Map<String, Object> config) {
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return "OutputMessage{key=" + (key != null ? key : keyBytes) + ", value=" + value + "}";
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.datastax.pulsar.functions.transforms.TransformContext;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericRecordBuilder;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+import org.apache.pulsar.client.api.schema.RecordSchemaBuilder;
+import org.apache.pulsar.client.api.schema.SchemaBuilder;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.functions.api.Record;
+
+/** Builds the input records of the benchmarks. */
+final class BenchmarkRecords {
+
+  private BenchmarkRecords() {}
+
+  /**
+   * Creates KeyValue records of AVRO key and value, with their encoded input message.
+   *
+   * @param fieldCount the number of string fields of the key and of the value
+   * @param payloadSize the approximate size in bytes of the encoded key and value
+   * @param schemaVersions the number of distinct schemas, used in turn by the records. Each version
+   *     adds a field to the key and value schemas so that the steps see schema churn.
+   */
+  static List<Record<GenericObject>> keyValueRecords(
+      int fieldCount, int payloadSize, int schemaVersions) throws IOException {
+    char[] chars = new char[Math.max(1, payloadSize / (2 * fieldCount))];
+    Arrays.fill(chars, 'x');
+    String fieldValue = new String(chars);
+    List<Record<GenericObject>> records = new ArrayList<>(schemaVersions);
+    for (int version = 0; version < schemaVersions; version++) {
+      GenericSchema<GenericRecord> keySchema = newSchema("keyField", fieldCount, version);
+      GenericSchema<GenericRecord> valueSchema = newSchema("valueField", fieldCount, version);
+      records.add(
+          keyValueRecord(
+              keySchema,
+              valueSchema,
+              newRecord(keySchema, "keyField", fieldCount, version, fieldValue),
+              newRecord(valueSchema, "valueField", fieldCount, version, fieldValue)));
+    }
+    return records;
+  }
+
+  /** Returns the names of the first <code>count</code> key and value fields. */
+  static List<String> fieldNames(int count) {
+    List<String> names = new ArrayList<>(2 * count);
+    for (int i = 0; i < count; i++) {
+      names.add("keyField" + i);
+      names.add("valueField" + i);
+    }
+    return names;
+  }
+
+  private static GenericSchema<GenericRecord> newSchema(
+      String fieldPrefix, int fieldCount, int version) {
+    RecordSchemaBuilder schemaBuilder = SchemaBuilder.record("record");
+    for (int i = 0; i < fieldCount; i++) {
+      schemaBuilder.field(fieldPrefix + i).type(SchemaType.STRING);
+    }
+    for (int i = 0; i < version; i++) {
+      schemaBuilder.field(fieldPrefix + "Version" + i).type(SchemaType.INT32);
+    }
+    return Schema.generic(schemaBuilder.build(SchemaType.AVRO));
+  }
+
+  private static GenericRecord newRecord(
+      GenericSchema<GenericRecord> schema,
+      String fieldPrefix,
+      int fieldCount,
+      int version,
+      String fieldValue) {
+    GenericRecordBuilder recordBuilder = schema.newRecordBuilder();
+    for (int i = 0; i < fieldCount; i++) {
+      recordBuilder.set(fieldPrefix + i, fieldValue);
+    }
+    for (int i = 0; i < version; i++) {
+      recordBuilder.set(fieldPrefix + "Version" + i, i);
+    }
+    return recordBuilder.build();
+  }
+
+  private static Record<GenericObject> keyValueRecord(
+      GenericSchema<GenericRecord> keySchema,
+      GenericSchema<GenericRecord> valueSchema,
+      GenericRecord key,
+      GenericRecord value)
+      throws IOException {
+    Schema<KeyValue<GenericRecord, GenericRecord>> schema =
+        Schema.KeyValue(keySchema, valueSchema, KeyValueEncodingType.SEPARATED);
+    KeyValue<GenericRecord, GenericRecord> keyValue = new KeyValue<>(key, value);
+    GenericObject genericObject =
+        new GenericObject() {
+          @Override
+          public SchemaType getSchemaType() {
+            return SchemaType.KEY_VALUE;
+          }
+
+          @Override
+          public Object getNativeObject() {
+            return keyValue;
+          }
+        };
+    return new InputRecord(
+        schema,
+        genericObject,
+        inputMessage(
+            TransformContext.serializeGenericRecord(
+                (org.apache.avro.generic.GenericRecord) key.getNativeObject()),
+            TransformContext.serializeGenericRecord(
+                (org.apache.avro.generic.GenericRecord) value.getNativeObject()),
+            System.currentTimeMillis()));
+  }
+
+  /**
+   * Creates an input message with the given key bytes, payload and publish time. Only the methods
+   * read by the function are implemented.
+   */
+  @SuppressWarnings("unchecked")
+  static Message<GenericObject> inputMessage(byte[] keyBytes, byte[] data, long publishTime) {
+    return (Message<GenericObject>)
+        Proxy.newProxyInstance(
+            BenchmarkRecords.class.getClassLoader(),
+            new Class<?>[] {Message.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getData":
+                  return data;
+                case "hasKey":
+                case "hasBase64EncodedKey":
+                  return keyBytes != null;
+                case "getKeyBytes":
+                  return keyBytes;
+                case "getProperties":
+                  return Collections.emptyMap();
+                case "getSchemaVersion":
+                  return null;
+                case "getPublishTime":
+                  return publishTime;
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "InputMessage";
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  /** An input record with its input message. */
+  private static final class InputRecord implements Record<GenericObject> {
+    private final Schema<?> schema;
+    private final GenericObject value;
+    private final Message<GenericObject> message;
+
+    private InputRecord(Schema<?> schema, GenericObject value, Message<GenericObject> message) {
+      this.schema = schema;
+      this.value = value;
+      this.message = message;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Schema<GenericObject> getSchema() {
+      return (Schema<GenericObject>) schema;
+    }
+
+    @Override
+    public GenericObject getValue() {
+      return value;
+    }
+
+    @Override
+    public Map<String, String> getProperties() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Optional<Message<GenericObject>> getMessage() {
+      return Optional.of(message);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.datastax.pulsar.functions.transforms.TransformFunction;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.functions.api.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures {@link TransformFunction} pipelines of several steps, including the send. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+  @Param({"drop-merge", "drop-merge-unwrap-cast", "drop-merge-specialized"})
+  public String pipeline;
+
+  @Param({"4", "32"})
+  public int fieldCount;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  @Param({"1", "16"})
+  public int schemaVersions;
+
+  private TransformFunction transformFunction;
+  private Record<GenericObject>[] records;
+  private BenchmarkContext context;
+  private int next;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() throws Exception {
+    List<Record<GenericObject>> recordList =
+        BenchmarkRecords.keyValueRecords(fieldCount, payloadSize, schemaVersions);
+    records = recordList.toArray(new Record[0]);
+    context = new BenchmarkContext(userConfig(pipeline, fieldCount));
+    transformFunction = new TransformFunction();
+    transformFunction.initialize(context);
+  }
+
+  @Benchmark
+  public Object process() throws Exception {
+    Record<GenericObject> record = records[next];
+    next = (next + 1) % records.length;
+    context.setCurrentRecord(record);
+    transformFunction.process(record.getValue(), context);
+    return context.getOutputMessage();
+  }
+
+  static Map<String, Object> userConfig(String pipeline, int fieldCount) {
+    String droppedFields = String.join(",", BenchmarkRecords.fieldNames(fieldCount / 2));
+    String drop = "{'type': 'drop-fields', 'fields': '" + droppedFields + "'}";
+    String merge = "{'type': 'merge-key-value'}";
+    String config;
+    switch (pipeline) {
+      case "drop-merge":
+        config = "{'steps': [" + drop + ", " + merge + "]}";
+        break;
+      case "drop-merge-unwrap-cast":
+        config =
+            "{'steps': ["
+                + drop
+                + ", "
+                + merge
+                + ", {'type': 'unwrap-key-value'}, {'type': 'cast', 'schema-type': 'STRING'}]}";
+        break;
+      case "drop-merge-specialized":
+        config = "{'steps': [" + drop + ", " + merge + "], 'specialize': true}";
+        break;
+      default:
+        throw new IllegalArgumentException("invalid pipeline: " + pipeline);
+    }
+    return new Gson()
+        .fromJson(config.replace("'", "\""), new TypeToken<Map<String, Object>>() {}.getType());
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.google.gson.Gson;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.apache.pulsar.common.schema.SchemaInfo;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.functions.api.Record;
+
+/**
+ * A corpus of recorded messages, stored as one Json object per line:
+ *
+ * <pre><code class="lang-json">
+ * {
+ *   "keySchema": "{\"type\": \"record\", ...}",
+ *   "valueSchema": "{\"type\": \"record\", ...}",
+ *   "keyValueEncoding": "SEPARATED",
+ *   "key": "base64 of the Avro encoded key",
+ *   "value": "base64 of the Avro encoded value",
+ *   "properties": {"name": "value"},
+ *   "publishTime": 1650000000000
+ * }
+ * </code></pre>
+ *
+ * <p>The schemas are Avro schemas. When <code>keySchema</code> is absent the message is an AVRO
+ * record, otherwise it is a KeyValue of AVRO key and value. With the <code>INLINE</code> encoding,
+ * <code>value</code> holds the whole KeyValue encoding and <code>key</code> is absent. The replayed
+ * messages have the recorded <code>publishTime</code>, in milliseconds since the epoch. When it is
+ * absent, the end-to-end latency of the message is not recorded.
+ */
+final class ReplayCorpus {
+
+  private static final Gson GSON = new Gson();
+
+  private ReplayCorpus() {}
+
+  /** A recorded message, as stored in the corpus. */
+  static class RecordedMessage {
+    String keySchema;
+    String valueSchema;
+    KeyValueEncodingType keyValueEncoding;
+    String key;
+    String value;
+    Map<String, String> properties;
+    Long publishTime;
+  }
+
+  static List<RecordedMessage> read(Path path) throws IOException {
+    List<RecordedMessage> messages = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.trim().isEmpty()) {
+          messages.add(GSON.fromJson(line, RecordedMessage.class));
+        }
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Prepares the recorded messages for replay. The schemas are parsed once per distinct schema, as
+   * the Pulsar runtime caches them per schema version.
+   */
+  static List<ReplayMessage> prepare(List<RecordedMessage> messages) {
+    Map<String, GenericSchema<GenericRecord>> schemas = new HashMap<>();
+    Map<List<Object>, Schema<?>> keyValueSchemas = new HashMap<>();
+    List<ReplayMessage> prepared = new ArrayList<>(messages.size());
+    for (RecordedMessage message : messages) {
+      GenericSchema<GenericRecord> valueSchema =
+          schemas.computeIfAbsent(message.valueSchema, ReplayCorpus::parseSchema);
+      byte[] value = Base64.getDecoder().decode(message.value);
+      Map<String, String> properties =
+          message.properties == null ? Collections.emptyMap() : message.properties;
+      long publishTime = message.publishTime == null ? 0L : message.publishTime;
+      if (message.keySchema == null) {
+        prepared.add(
+            new ReplayMessage(
+                valueSchema, null, valueSchema, null, value, properties, publishTime));
+        continue;
+      }
+      GenericSchema<GenericRecord> keySchema =
+          schemas.computeIfAbsent(message.keySchema, ReplayCorpus::parseSchema);
+      KeyValueEncodingType encoding =
+          message.keyValueEncoding == null
+              ? KeyValueEncodingType.SEPARATED
+              : message.keyValueEncoding;
+      Schema<?> keyValueSchema =
+          keyValueSchemas.computeIfAbsent(
+              Arrays.asList(message.keySchema, message.valueSchema, encoding),
+              k -> Schema.KeyValue(keySchema, valueSchema, encoding));
+      byte[] key = message.key == null ? null : Base64.getDecoder().decode(message.key);
+      prepared.add(
+          new ReplayMessage(
+              keyValueSchema, keySchema, valueSchema, key, value, properties, publishTime));
+    }
+    return prepared;
+  }
+
+  private static GenericSchema<GenericRecord> parseSchema(String avroSchema) {
+    return Schema.generic(
+        SchemaInfo.builder()
+            .name("replay")
+            .type(SchemaType.AVRO)
+            .schema(avroSchema.getBytes(StandardCharsets.UTF_8))
+            .properties(Collections.emptyMap())
+            .build());
+  }
+
+  /** A recorded message with its parsed schemas, that can be decoded into a function input. */
+  static class ReplayMessage {
+    private final Schema<?> schema;
+    // null unless the message is a KeyValue
+    private final GenericSchema<GenericRecord> keySchema;
+    private final GenericSchema<GenericRecord> valueSchema;
+    private final byte[] key;
+    private final byte[] value;
+    private final Map<String, String> properties;
+    private final Message<GenericObject> message;
+
+    private ReplayMessage(
+        Schema<?> schema,
+        GenericSchema<GenericRecord> keySchema,
+        GenericSchema<GenericRecord> valueSchema,
+        byte[] key,
+        byte[] value,
+        Map<String, String> properties,
+        long publishTime) {
+      this.schema = schema;
+      this.keySchema = keySchema;
+      this.valueSchema = valueSchema;
+      this.key = key;
+      this.value = value;
+      this.properties = properties;
+      this.message = BenchmarkRecords.inputMessage(key, value, publishTime);
+    }
+
+    int size() {
+      return value.length + (key == null ? 0 : key.length);
+    }
+
+    /** Decodes the message like the Pulsar runtime does before calling the function. */
+    Record<GenericObject> decode() {
+      GenericObject genericObject;
+      if (keySchema == null) {
+        genericObject = valueSchema.decode(value);
+      } else {
+        KeyValue<GenericRecord, GenericRecord> keyValue =
+            key == null
+                ? KeyValue.decode(
+                    value, (keyBytes, valueBytes) -> decodeKeyValue(keyBytes, valueBytes))
+                : decodeKeyValue(key, value);
+        genericObject =
+            new GenericObject() {
+              @Override
+              public SchemaType getSchemaType() {
+                return SchemaType.KEY_VALUE;
+              }
+
+              @Override
+              public Object getNativeObject() {
+                return keyValue;
+              }
+            };
+      }
+      return new ReplayRecord(genericObject);
+    }
+
+    private KeyValue<GenericRecord, GenericRecord> decodeKeyValue(
+        byte[] keyBytes, byte[] valueBytes) {
+      return new KeyValue<>(keySchema.decode(keyBytes), valueSchema.decode(valueBytes));
+    }
+
+    private class ReplayRecord implements Record<GenericObject> {
+      private final GenericObject genericObject;
+
+      private ReplayRecord(GenericObject genericObject) {
+        this.genericObject = genericObject;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public Schema<GenericObject> getSchema() {
+        return (Schema<GenericObject>) schema;
+      }
+
+      @Override
+      public GenericObject getValue() {
+        return genericObject;
+      }
+
+      @Override
+      public Map<String, String> getProperties() {
+        return properties;
+      }
+
+      @Override
+      public Optional<Message<GenericObject>> getMessage() {
+        return Optional.of(message);
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.datastax.pulsar.functions.transforms.TransformFunction;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.functions.api.Record;
+
+/**
+ * Replays a {@link ReplayCorpus} through a {@link TransformFunction} configured with a given user
+ * config, in process and without a broker, and reports the sustained throughput, the per-record
+ * latency percentiles and the GC activity:
+ *
+ * <pre>
+ * java -cp pulsar-transformations-benchmarks/target/benchmarks.jar \
+ *   com.datastax.pulsar.functions.transforms.benchmarks.ReplayHarness \
+ *   --corpus messages.jsonl --config config.json --warmup-seconds 10 --duration-seconds 60
+ * </pre>
+ *
+ * <p>The corpus is replayed in a loop. The latency of a record covers its decoding, as done by the
+ * Pulsar runtime, and the call to the function. With <code>lanes</code> or <code>batch-size</code>
+ * configured, the call returns before the record is processed so only the throughput, which
+ * includes draining the function on close, is meaningful. The output messages are dropped and their
+ * sends complete immediately, so the send modes that wait for the sends to complete, like <code>
+ * send-async</code>, replay without a broker.
+ */
+public final class ReplayHarness {
+
+  // Latencies are sampled into a reservoir of this size
+  private static final int MAX_LATENCY_SAMPLES = 1 << 20;
+
+  private ReplayHarness() {}
+
+  public static void main(String[] args) throws Exception {
+    String corpus = null;
+    String config = null;
+    long warmupSeconds = 10;
+    long durationSeconds = 60;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--corpus":
+          corpus = args[i + 1];
+          break;
+        case "--config":
+          config = args[i + 1];
+          break;
+        case "--warmup-seconds":
+          warmupSeconds = Long.parseLong(args[i + 1]);
+          break;
+        case "--duration-seconds":
+          durationSeconds = Long.parseLong(args[i + 1]);
+          break;
+        default:
+          throw new IllegalArgumentException("invalid option: " + args[i]);
+      }
+    }
+    if (corpus == null || config == null || args.length % 2 != 0) {
+      System.err.println(
+          "usage: ReplayHarness --corpus <file> --config <file> "
+              + "[--warmup-seconds <seconds>] [--duration-seconds <seconds>]");
+      System.exit(1);
+    }
+    List<ReplayCorpus.ReplayMessage> messages =
+        ReplayCorpus.prepare(ReplayCorpus.read(Paths.get(corpus)));
+    if (messages.isEmpty()) {
+      throw new IllegalArgumentException("the corpus is empty");
+    }
+    Map<String, Object> userConfig = readUserConfig(config);
+
+    TransformFunction transformFunction = new TransformFunction();
+    BenchmarkContext context = new BenchmarkContext(userConfig);
+    transformFunction.initialize(context);
+
+    System.out.printf("Warming up for %d s with %d messages%n", warmupSeconds, messages.size());
+    run(transformFunction, context, messages, TimeUnit.SECONDS.toNanos(warmupSeconds), null);
+
+    System.out.printf("Measuring for %d s%n", durationSeconds);
+    Result result = new Result();
+    long gcCount = gcCount();
+    long gcMillis = gcMillis();
+    long start = System.nanoTime();
+    run(transformFunction, context, messages, TimeUnit.SECONDS.toNanos(durationSeconds), result);
+    transformFunction.close();
+    long elapsed = System.nanoTime() - start;
+    result.report(elapsed, gcCount() - gcCount, gcMillis() - gcMillis);
+  }
+
+  private static void run(
+      TransformFunction transformFunction,
+      BenchmarkContext context,
+      List<ReplayCorpus.ReplayMessage> messages,
+      long durationNanos,
+      Result result)
+      throws Exception {
+    long deadline = System.nanoTime() + durationNanos;
+    int next = 0;
+    while (System.nanoTime() < deadline) {
+      ReplayCorpus.ReplayMessage message = messages.get(next);
+      next = (next + 1) % messages.size();
+      long start = System.nanoTime();
+      Record<GenericObject> record = message.decode();
+      context.setCurrentRecord(record);
+      transformFunction.process(record.getValue(), context);
+      if (result != null) {
+        result.add(System.nanoTime() - start, message.size());
+      }
+    }
+  }
+
+  private static Map<String, Object> readUserConfig(String path) throws IOException {
+    String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+    return new Gson().fromJson(json, new TypeToken<Map<String, Object>>() {}.getType());
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static class Result {
+    private final long[] latencies = new long[MAX_LATENCY_SAMPLES];
+    private long count;
+    private long bytes;
+
+    void add(long latencyNanos, int size) {
+      // Reservoir sampling keeps a uniform sample of the latencies of long runs
+      if (count < latencies.length) {
+        latencies[(int) count] = latencyNanos;
+      } else {
+        long index = ThreadLocalRandom.current().nextLong(count + 1);
+        if (index < latencies.length) {
+          latencies[(int) index] = latencyNanos;
+        }
+      }
+      count++;
+      bytes += size;
+    }
+
+    void report(long elapsedNanos, long gcCount, long gcMillis) {
+      double seconds = elapsedNanos / 1e9;
+      long[] sorted = Arrays.copyOf(latencies, (int) Math.min(count, latencies.length));
+      Arrays.sort(sorted);
+      System.out.printf("Messages:   %d%n", count);
+      System.out.printf(
+          "Throughput: %.0f msgs/s, %.2f MB/s%n", count / seconds, bytes / seconds / (1024 * 1024));
+      System.out.printf(
+          "Latency:    p50 %.2f us, p99 %.2f us, p999 %.2f us, max %.2f us%n",
+          percentile(sorted, 0.5),
+          percentile(sorted, 0.99),
+          percentile(sorted, 0.999),
+          percentile(sorted, 1));
+      System.out.printf(
+          "GC:         %d collections, %d ms total, %.2f%% of the time%n",
+          gcCount, gcMillis, gcMillis / (seconds * 10));
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(quantile * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e3;
+    }
+  }
+}
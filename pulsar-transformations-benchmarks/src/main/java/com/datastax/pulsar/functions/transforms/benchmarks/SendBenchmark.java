@@ -0,0 +1,118 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.datastax.pulsar.functions.transforms.TransformContext;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.functions.api.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TransformContext#send()} of KeyValue records that were not modified, and of
+ * records whose value was replaced by a record that must be serialized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+
+  @Param({"4", "32"})
+  public int fieldCount;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  @Param({"1", "16"})
+  public int schemaVersions;
+
+  private Record<GenericObject>[] records;
+  // A copy of the value of each record, which is not the input object so it must be serialized
+  private GenericRecord[] valueCopies;
+  private BenchmarkContext context;
+  private int next;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() throws Exception {
+    List<Record<GenericObject>> recordList =
+        BenchmarkRecords.keyValueRecords(fieldCount, payloadSize, schemaVersions);
+    records = recordList.toArray(new Record[0]);
+    context = new BenchmarkContext(new HashMap<>());
+    valueCopies = new GenericRecord[records.length];
+    for (int i = 0; i < records.length; i++) {
+      context.setCurrentRecord(records[i]);
+      GenericRecord value =
+          (GenericRecord)
+              new TransformContext(context, records[i].getValue().getNativeObject())
+                  .getValueObject();
+      GenericData.Record copy = new GenericData.Record(value.getSchema());
+      for (int j = 0; j < value.getSchema().getFields().size(); j++) {
+        copy.put(j, value.get(j));
+      }
+      valueCopies[i] = copy;
+      // send() serializes the value only when it has no encoding left, which must be the case of
+      // the copy for sendSerialized to measure a serialization
+      TransformContext transformContext =
+          new TransformContext(context, records[i].getValue().getNativeObject());
+      transformContext.setValueObject(copy);
+      if (transformContext.getValueAvroBytes() != null) {
+        throw new IllegalStateException("sendSerialized would not serialize the value");
+      }
+    }
+  }
+
+  @Benchmark
+  public Object sendUnmodified() throws Exception {
+    TransformContext transformContext = nextContext();
+    transformContext.send();
+    return context.getOutputMessage();
+  }
+
+  @Benchmark
+  public Object sendSerialized() throws Exception {
+    TransformContext transformContext = nextContext();
+    // Replacing the value by another object drops its input encoding
+    transformContext.setValueObject(valueCopies[next]);
+    transformContext.setValueModified(true);
+    transformContext.send();
+    return context.getOutputMessage();
+  }
+
+  private TransformContext nextContext() {
+    next = (next + 1) % records.length;
+    Record<GenericObject> record = records[next];
+    context.setCurrentRecord(record);
+    return new TransformContext(context, record.getValue().getNativeObject());
+  }
+}
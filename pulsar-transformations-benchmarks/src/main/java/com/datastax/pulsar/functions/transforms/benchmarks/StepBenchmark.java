@@ -0,0 +1,108 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms.benchmarks;
+
+import com.datastax.pulsar.functions.transforms.CastStep;
+import com.datastax.pulsar.functions.transforms.DropFieldStep;
+import com.datastax.pulsar.functions.transforms.MergeKeyValueStep;
+import com.datastax.pulsar.functions.transforms.TransformContext;
+import com.datastax.pulsar.functions.transforms.TransformStep;
+import com.datastax.pulsar.functions.transforms.UnwrapKeyValueStep;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.functions.api.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single step applied to KeyValue records, without sending them. The step sees the
+ * records of <code>schemaVersions</code> schemas in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+  @Param({"cast", "drop-fields", "merge-key-value", "unwrap-key-value"})
+  public String step;
+
+  @Param({"4", "32"})
+  public int fieldCount;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  @Param({"1", "16"})
+  public int schemaVersions;
+
+  private TransformStep transformStep;
+  private Record<GenericObject>[] records;
+  private BenchmarkContext context;
+  private int next;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() throws Exception {
+    transformStep = newStep(step, fieldCount);
+    List<Record<GenericObject>> recordList =
+        BenchmarkRecords.keyValueRecords(fieldCount, payloadSize, schemaVersions);
+    records = recordList.toArray(new Record[0]);
+    context = new BenchmarkContext(new HashMap<>());
+  }
+
+  @Benchmark
+  public TransformContext process() throws Exception {
+    Record<GenericObject> record = records[next];
+    next = (next + 1) % records.length;
+    context.setCurrentRecord(record);
+    TransformContext transformContext =
+        new TransformContext(context, record.getValue().getNativeObject());
+    transformStep.process(transformContext);
+    return transformContext;
+  }
+
+  static TransformStep newStep(String step, int fieldCount) {
+    switch (step) {
+      case "cast":
+        return new CastStep(SchemaType.STRING, SchemaType.STRING);
+      case "drop-fields":
+        // Drops half of the key and value fields
+        List<String> fields = BenchmarkRecords.fieldNames(fieldCount / 2);
+        return new DropFieldStep(fields, fields);
+      case "merge-key-value":
+        return new MergeKeyValueStep();
+      case "unwrap-key-value":
+        return new UnwrapKeyValueStep(false);
+      default:
+        throw new IllegalArgumentException("invalid step: " + step);
+    }
+  }
+}
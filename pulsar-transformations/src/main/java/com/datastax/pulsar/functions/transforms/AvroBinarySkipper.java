@@ -0,0 +1,242 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.Schema;
+
+/**
+ * Skips over an Avro binary encoded value without decoding it. Skippers are compiled once per
+ * schema and are used to find the boundaries of the encoded fields of a record.
+ */
+abstract class AvroBinarySkipper {
+
+  /**
+   * Skips the value starting at <code>pos</code>.
+   *
+   * @return the position following the value
+   */
+  abstract int skip(byte[] buf, int pos);
+
+  static AvroBinarySkipper of(Schema schema) {
+    return compile(schema, new IdentityHashMap<>());
+  }
+
+  static AvroBinarySkipper[] ofFields(Schema recordSchema) {
+    Map<Schema, RecordSkipper> records = new IdentityHashMap<>();
+    List<Schema.Field> fields = recordSchema.getFields();
+    AvroBinarySkipper[] skippers = new AvroBinarySkipper[fields.size()];
+    for (int i = 0; i < skippers.length; i++) {
+      skippers[i] = compile(fields.get(i).schema(), records);
+    }
+    return skippers;
+  }
+
+  private static AvroBinarySkipper compile(Schema schema, Map<Schema, RecordSkipper> records) {
+    switch (schema.getType()) {
+      case NULL:
+        return FixedSkipper.NULL;
+      case BOOLEAN:
+        return FixedSkipper.BOOLEAN;
+      case FLOAT:
+        return FixedSkipper.FLOAT;
+      case DOUBLE:
+        return FixedSkipper.DOUBLE;
+      case FIXED:
+        return new FixedSkipper(schema.getFixedSize());
+      case INT:
+      case LONG:
+      case ENUM:
+        return VarintSkipper.INSTANCE;
+      case STRING:
+      case BYTES:
+        return LengthPrefixedSkipper.INSTANCE;
+      case ARRAY:
+        return new ArraySkipper(compile(schema.getElementType(), records));
+      case MAP:
+        return new MapSkipper(compile(schema.getValueType(), records));
+      case UNION:
+        List<Schema> types = schema.getTypes();
+        AvroBinarySkipper[] branches = new AvroBinarySkipper[types.size()];
+        for (int i = 0; i < branches.length; i++) {
+          branches[i] = compile(types.get(i), records);
+        }
+        return new UnionSkipper(branches);
+      case RECORD:
+        RecordSkipper recordSkipper = records.get(schema);
+        if (recordSkipper == null) {
+          // Registered before its fields are compiled so that recursive schemas terminate
+          recordSkipper = new RecordSkipper();
+          records.put(schema, recordSkipper);
+          List<Schema.Field> fields = schema.getFields();
+          AvroBinarySkipper[] fieldSkippers = new AvroBinarySkipper[fields.size()];
+          for (int i = 0; i < fieldSkippers.length; i++) {
+            fieldSkippers[i] = compile(fields.get(i).schema(), records);
+          }
+          recordSkipper.fields = fieldSkippers;
+        }
+        return recordSkipper;
+      default:
+        throw new IllegalArgumentException("Unsupported Avro type: " + schema.getType());
+    }
+  }
+
+  /** Reads a zig-zag encoded variable-length long starting at <code>pos</code>. */
+  static long readLong(byte[] buf, int pos) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (shift > 63) {
+        throw new IllegalArgumentException("Invalid Avro varint at position " + pos);
+      }
+      b = buf[pos++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Returns the position following the variable-length integer starting at <code>pos</code>. */
+  static int skipVarint(byte[] buf, int pos) {
+    while ((buf[pos++] & 0x80) != 0) {
+      // continuation bit set
+    }
+    return pos;
+  }
+
+  /** Skips a long length followed by that number of bytes. */
+  private static int skipBytes(byte[] buf, int pos) {
+    long length = readLong(buf, pos);
+    if (length < 0) {
+      throw new IllegalArgumentException("Invalid Avro length " + length);
+    }
+    return Math.toIntExact(skipVarint(buf, pos) + length);
+  }
+
+  private static int skipBlocks(byte[] buf, int pos, AvroBinarySkipper[] itemSkippers) {
+    while (true) {
+      long count = readLong(buf, pos);
+      pos = skipVarint(buf, pos);
+      if (count == 0) {
+        return pos;
+      }
+      if (count < 0) {
+        // A negative count is followed by the size in bytes of the block
+        pos = skipBytes(buf, pos);
+      } else {
+        for (long i = 0; i < count; i++) {
+          for (AvroBinarySkipper itemSkipper : itemSkippers) {
+            pos = itemSkipper.skip(buf, pos);
+          }
+        }
+      }
+    }
+  }
+
+  private static class FixedSkipper extends AvroBinarySkipper {
+    private static final FixedSkipper NULL = new FixedSkipper(0);
+    private static final FixedSkipper BOOLEAN = new FixedSkipper(1);
+    private static final FixedSkipper FLOAT = new FixedSkipper(4);
+    private static final FixedSkipper DOUBLE = new FixedSkipper(8);
+
+    private final int size;
+
+    private FixedSkipper(int size) {
+      this.size = size;
+    }
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      return pos + size;
+    }
+  }
+
+  private static class VarintSkipper extends AvroBinarySkipper {
+    private static final VarintSkipper INSTANCE = new VarintSkipper();
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      return skipVarint(buf, pos);
+    }
+  }
+
+  private static class LengthPrefixedSkipper extends AvroBinarySkipper {
+    private static final LengthPrefixedSkipper INSTANCE = new LengthPrefixedSkipper();
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      return skipBytes(buf, pos);
+    }
+  }
+
+  private static class ArraySkipper extends AvroBinarySkipper {
+    private final AvroBinarySkipper[] element;
+
+    private ArraySkipper(AvroBinarySkipper element) {
+      this.element = new AvroBinarySkipper[] {element};
+    }
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      return skipBlocks(buf, pos, element);
+    }
+  }
+
+  private static class MapSkipper extends AvroBinarySkipper {
+    private final AvroBinarySkipper[] entry;
+
+    private MapSkipper(AvroBinarySkipper value) {
+      this.entry = new AvroBinarySkipper[] {LengthPrefixedSkipper.INSTANCE, value};
+    }
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      return skipBlocks(buf, pos, entry);
+    }
+  }
+
+  private static class UnionSkipper extends AvroBinarySkipper {
+    private final AvroBinarySkipper[] branches;
+
+    private UnionSkipper(AvroBinarySkipper[] branches) {
+      this.branches = branches;
+    }
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      long index = readLong(buf, pos);
+      if (index < 0 || index >= branches.length) {
+        throw new IllegalArgumentException("Invalid Avro union index " + index);
+      }
+      return branches[(int) index].skip(buf, skipVarint(buf, pos));
+    }
+  }
+
+  private static class RecordSkipper extends AvroBinarySkipper {
+    private AvroBinarySkipper[] fields;
+
+    @Override
+    int skip(byte[] buf, int pos) {
+      for (AvroBinarySkipper field : fields) {
+        pos = field.skip(buf, pos);
+      }
+      return pos;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.avro.Schema;
+
+/**
+ * Builds the Avro binary encoding of a record from the encoded fields of up to two input records,
+ * without decoding them. Consecutive fields taken from the same input are copied as one block and
+ * an input that is copied whole is not scanned at all.
+ */
+final class AvroRecordSplicer {
+
+  static final int FIRST = 0;
+  static final int SECOND = 1;
+
+  private final AvroBinarySkipper[][] fieldSkippers = new AvroBinarySkipper[2][];
+  // Inputs for which the field boundaries must be computed
+  private final boolean[] scanned = new boolean[2];
+  // The blocks to copy, in output order, as [input, first field, last field (exclusive)]
+  private final int[] blockInputs;
+  private final int[] blockFrom;
+  private final int[] blockTo;
+
+  /**
+   * @param first the schema of the first input record, or null if only the second one is used
+   * @param second the schema of the second input record, or null if there is a single input
+   * @param inputs the input ({@link #FIRST} or {@link #SECOND}) of each output field
+   * @param positions the position in its input record of each output field
+   */
+  AvroRecordSplicer(Schema first, Schema second, int[] inputs, int[] positions) {
+    fieldSkippers[FIRST] = first == null ? null : AvroBinarySkipper.ofFields(first);
+    fieldSkippers[SECOND] = second == null ? null : AvroBinarySkipper.ofFields(second);
+    List<int[]> blocks = new ArrayList<>();
+    int[] block = null;
+    for (int i = 0; i < inputs.length; i++) {
+      if (block != null && block[0] == inputs[i] && block[2] == positions[i]) {
+        block[2]++;
+      } else {
+        block = new int[] {inputs[i], positions[i], positions[i] + 1};
+        blocks.add(block);
+      }
+    }
+    blockInputs = new int[blocks.size()];
+    blockFrom = new int[blocks.size()];
+    blockTo = new int[blocks.size()];
+    for (int i = 0; i < blocks.size(); i++) {
+      block = blocks.get(i);
+      blockInputs[i] = block[0];
+      blockFrom[i] = block[1];
+      blockTo[i] = block[2];
+      if (block[1] != 0 || block[2] != fieldSkippers[block[0]].length) {
+        scanned[block[0]] = true;
+      }
+    }
+  }
+
+  /**
+   * Splices the encoded input records.
+   *
+   * @throws IllegalArgumentException if an input that needs to be scanned does not match its schema
+   */
+  byte[] splice(byte[] first, byte[] second) {
+    int[][] offsets = new int[2][];
+    byte[][] buffers = new byte[][] {first, second};
+    for (int input = FIRST; input <= SECOND; input++) {
+      if (scanned[input]) {
+        offsets[input] = fieldOffsets(fieldSkippers[input], buffers[input]);
+      }
+    }
+    int length = 0;
+    for (int i = 0; i < blockInputs.length; i++) {
+      length += blockEnd(i, buffers, offsets) - blockStart(i, offsets);
+    }
+    byte[] output = new byte[length];
+    int pos = 0;
+    for (int i = 0; i < blockInputs.length; i++) {
+      int start = blockStart(i, offsets);
+      int blockLength = blockEnd(i, buffers, offsets) - start;
+      System.arraycopy(buffers[blockInputs[i]], start, output, pos, blockLength);
+      pos += blockLength;
+    }
+    return output;
+  }
+
+  private int blockStart(int block, int[][] offsets) {
+    int[] inputOffsets = offsets[blockInputs[block]];
+    // Inputs that are not scanned are always copied whole
+    return inputOffsets == null ? 0 : inputOffsets[blockFrom[block]];
+  }
+
+  private int blockEnd(int block, byte[][] buffers, int[][] offsets) {
+    int[] inputOffsets = offsets[blockInputs[block]];
+    return inputOffsets == null ? buffers[blockInputs[block]].length : inputOffsets[blockTo[block]];
+  }
+
+  private static int[] fieldOffsets(AvroBinarySkipper[] skippers, byte[] buf) {
+    int[] offsets = new int[skippers.length + 1];
+    try {
+      for (int i = 0; i < skippers.length; i++) {
+        offsets[i + 1] = skippers[i].skip(buf, offsets[i]);
+      }
+    } catch (IndexOutOfBoundsException | ArithmeticException e) {
+      throw new IllegalArgumentException("Avro payload does not match its schema", e);
+    }
+    if (offsets[skippers.length] != buf.length) {
+      throw new IllegalArgumentException("Avro payload does not match its schema");
+    }
+    return offsets;
+  }
+}
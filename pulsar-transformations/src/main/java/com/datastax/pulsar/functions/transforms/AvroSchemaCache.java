@@ -0,0 +1,129 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+
+/**
+ * A cache of values computed from Avro schemas, such as the compiled plans of the steps.
+ *
+ * <p>Schema instances are usually shared by all the records of a schema version, so they are first
+ * looked up by identity, which doesn't depend on the width of the schema. A schema instance that is
+ * not known yet is looked up by the 64-bit fingerprint of its full JSON definition, and compared
+ * with the cached schema to rule out collisions, before the value is computed.
+ */
+final class AvroSchemaCache<V> {
+
+  static final int DEFAULT_MAX_SIZE = 1024;
+  // Plans are weighted by the number of fields of their input schemas
+  static final long DEFAULT_MAX_WEIGHT = 1 << 20;
+
+  private final ToLongFunction<? super V> weigher;
+  private final BoundedCache<Schema, V> bySchema;
+  private final BoundedCache<Long, Entry<V>> byFingerprint;
+
+  /**
+   * @param maxSize the maximum number of cached schemas
+   * @param maxWeight the maximum total weight of the cached values
+   * @param weigher computes the weight of a value once, when it is added
+   * @param metrics the metrics to update, counting lookups by schema instance
+   * @param fingerprintMetrics the metrics to update, counting lookups by fingerprint of the schema
+   *     instances that are not known yet
+   * @param onEviction called with each value evicted to respect the bounds, once per lookup tier
+   *     that held it
+   */
+  AvroSchemaCache(
+      int maxSize,
+      long maxWeight,
+      ToLongFunction<? super V> weigher,
+      CacheMetrics metrics,
+      CacheMetrics fingerprintMetrics,
+      Consumer<? super V> onEviction) {
+    this.weigher = weigher;
+    this.bySchema = new BoundedCache<>(true, maxSize, maxWeight, weigher, metrics, onEviction);
+    this.byFingerprint =
+        new BoundedCache<>(
+            false,
+            maxSize,
+            maxWeight,
+            this::weigh,
+            fingerprintMetrics,
+            entry -> onEviction.accept(entry.value));
+  }
+
+  AvroSchemaCache(
+      int maxSize,
+      long maxWeight,
+      ToLongFunction<? super V> weigher,
+      CacheMetrics metrics,
+      CacheMetrics fingerprintMetrics) {
+    this(maxSize, maxWeight, weigher, metrics, fingerprintMetrics, value -> {});
+  }
+
+  V get(Schema schema) {
+    return bySchema.get(schema);
+  }
+
+  V computeIfAbsent(Schema schema, Function<Schema, V> mappingFunction) {
+    V value = bySchema.get(schema);
+    if (value == null) {
+      value = bySchema.computeIfAbsent(schema, s -> getByFingerprint(s, mappingFunction));
+    }
+    return value;
+  }
+
+  void clear() {
+    clear(value -> {});
+  }
+
+  /**
+   * Evicts all the values, passing each of them to <code>onEviction</code> once or, if it was also
+   * looked up by fingerprint, twice.
+   */
+  void clear(Consumer<? super V> onEviction) {
+    bySchema.clear(onEviction);
+    byFingerprint.clear(entry -> onEviction.accept(entry.value));
+  }
+
+  private V getByFingerprint(Schema schema, Function<Schema, V> mappingFunction) {
+    long fingerprint =
+        SchemaNormalization.fingerprint64(schema.toString().getBytes(StandardCharsets.UTF_8));
+    Entry<V> entry =
+        byFingerprint.computeIfAbsent(
+            fingerprint, f -> new Entry<>(schema, mappingFunction.apply(schema)));
+    // On a fingerprint collision, the value is computed but only cached by schema instance
+    return entry.schema.equals(schema) ? entry.value : mappingFunction.apply(schema);
+  }
+
+  private long weigh(Entry<V> entry) {
+    return weigher.applyAsLong(entry.value);
+  }
+
+  private static class Entry<V> {
+    private final Schema schema;
+    private final V value;
+
+    private Entry(Schema schema, V value) {
+      this.schema = schema;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache bounded by a number of entries and a total weight, for values such as schemas and
+ * compiled plans that are shared by many records.
+ *
+ * <p>Lookups read an immutable snapshot of the entries without locking and a miss replaces the
+ * snapshot by a copy, so the cache is meant for keys that change much less often than they are
+ * looked up. When a bound is exceeded, entries that were not used since the previous eviction are
+ * evicted first, which approximates LRU without updating shared state on lookups other than a flag.
+ */
+final class BoundedCache<K, V> {
+
+  // After this many passes over the entries, entries are evicted even if they were recently used
+  private static final int MAX_EVICTION_PASSES = 2;
+
+  private final boolean identityKeys;
+  private final int maxSize;
+  private final long maxWeight;
+  private final ToLongFunction<? super V> weigher;
+  private final CacheMetrics metrics;
+  private final Consumer<? super V> onEviction;
+  private volatile Map<K, Node<V>> entries;
+  private long weight;
+
+  /**
+   * @param identityKeys whether keys are compared by identity instead of equals()
+   * @param maxSize the maximum number of entries
+   * @param maxWeight the maximum total weight of the entries
+   * @param weigher computes the weight of a value once, when it is added
+   * @param metrics the metrics to update, which can be shared by several caches
+   * @param onEviction called with the value of each entry evicted to respect the bounds
+   */
+  BoundedCache(
+      boolean identityKeys,
+      int maxSize,
+      long maxWeight,
+      ToLongFunction<? super V> weigher,
+      CacheMetrics metrics,
+      Consumer<? super V> onEviction) {
+    if (maxSize < 1 || maxWeight < 1) {
+      throw new IllegalArgumentException("cache bounds must be positive");
+    }
+    this.identityKeys = identityKeys;
+    this.maxSize = maxSize;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    this.metrics = metrics;
+    this.onEviction = onEviction;
+    this.entries = newMap(null);
+  }
+
+  BoundedCache(
+      boolean identityKeys,
+      int maxSize,
+      long maxWeight,
+      ToLongFunction<? super V> weigher,
+      CacheMetrics metrics) {
+    this(identityKeys, maxSize, maxWeight, weigher, metrics, value -> {});
+  }
+
+  /** Creates a cache of at most <code>maxSize</code> entries of weight 1. */
+  BoundedCache(boolean identityKeys, int maxSize, CacheMetrics metrics) {
+    this(identityKeys, maxSize, metrics, value -> {});
+  }
+
+  BoundedCache(
+      boolean identityKeys, int maxSize, CacheMetrics metrics, Consumer<? super V> onEviction) {
+    this(identityKeys, maxSize, maxSize, value -> 1, metrics, onEviction);
+  }
+
+  V get(K key) {
+    Node<V> node = entries.get(key);
+    if (node == null) {
+      return null;
+    }
+    if (!node.used) {
+      node.used = true;
+    }
+    metrics.hits.increment();
+    return node.value;
+  }
+
+  V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    V value = get(key);
+    if (value != null) {
+      return value;
+    }
+    synchronized (this) {
+      value = get(key);
+      if (value == null) {
+        metrics.misses.increment();
+        Object event = JfrEvents.beginCacheMiss();
+        value = mappingFunction.apply(key);
+        JfrEvents.commitCacheMiss(event, metrics.getName(), key);
+        long valueWeight = weigher.applyAsLong(value);
+        Map<K, Node<V>> copy = newMap(entries);
+        copy.put(key, new Node<>(value, valueWeight));
+        weight += valueWeight;
+        metrics.size.increment();
+        metrics.weight.add(valueWeight);
+        evict(copy, key);
+        entries = copy;
+      }
+    }
+    return value;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /** Evicts all the entries, passing each of their values to <code>onEviction</code>. */
+  void clear(Consumer<? super V> onEviction) {
+    Map<K, Node<V>> evicted;
+    synchronized (this) {
+      evicted = entries;
+      entries = newMap(null);
+      metrics.size.add(-evicted.size());
+      metrics.weight.add(-weight);
+      metrics.evictions.add(evicted.size());
+      weight = 0;
+    }
+    for (Node<V> node : evicted.values()) {
+      onEviction.accept(node.value);
+    }
+  }
+
+  private void evict(Map<K, Node<V>> copy, K addedKey) {
+    for (int pass = 0; pass <= MAX_EVICTION_PASSES && isOverBounds(copy); pass++) {
+      Iterator<Map.Entry<K, Node<V>>> iterator = copy.entrySet().iterator();
+      while (iterator.hasNext() && isOverBounds(copy)) {
+        Map.Entry<K, Node<V>> entry = iterator.next();
+        Node<V> node = entry.getValue();
+        if (entry.getKey() == addedKey) {
+          continue;
+        }
+        if (node.used && pass < MAX_EVICTION_PASSES) {
+          node.used = false;
+        } else {
+          iterator.remove();
+          weight -= node.weight;
+          metrics.size.decrement();
+          metrics.weight.add(-node.weight);
+          metrics.evictions.increment();
+          onEviction.accept(node.value);
+        }
+      }
+    }
+  }
+
+  private boolean isOverBounds(Map<K, Node<V>> map) {
+    return map.size() > maxSize || (weight > maxWeight && map.size() > 1);
+  }
+
+  private Map<K, Node<V>> newMap(Map<K, Node<V>> entries) {
+    if (identityKeys) {
+      return entries == null ? new IdentityHashMap<>() : new IdentityHashMap<>(entries);
+    }
+    return entries == null ? new HashMap<>() : new HashMap<>(entries);
+  }
+
+  private static class Node<V> {
+    private final V value;
+    private final long weight;
+    private volatile boolean used;
+
+    private Node(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the buffers that {@link GenericRecordSerializer} encodes records in. Each thread that
+ * serializes records holds one buffer, which grows to the largest record it encoded unless that
+ * exceeds the retained size limit.
+ *
+ * <p>The buffers are registered weakly, so that the buffer of a thread that died is no longer
+ * counted once it is garbage collected.
+ */
+public final class BufferMetrics {
+
+  private final Map<GenericRecordSerializer.GrowableByteArrayOutputStream, Boolean> liveBuffers =
+      new WeakHashMap<>();
+  final LongAccumulator highWaterMark = new LongAccumulator(Math::max, 0);
+  final LongAdder grows = new LongAdder();
+  final LongAdder discards = new LongAdder();
+
+  synchronized void register(GenericRecordSerializer.GrowableByteArrayOutputStream buffer) {
+    liveBuffers.put(buffer, Boolean.TRUE);
+  }
+
+  /** Returns the number of buffers currently held by the threads. */
+  public synchronized long getBuffers() {
+    return liveBuffers.size();
+  }
+
+  /** Returns the capacity of the buffers currently held by the threads. */
+  public synchronized long getRetainedBytes() {
+    long retainedBytes = 0;
+    for (GenericRecordSerializer.GrowableByteArrayOutputStream buffer : liveBuffers.keySet()) {
+      retainedBytes += buffer.capacity();
+    }
+    return retainedBytes;
+  }
+
+  /** Returns the size of the largest record encoded. */
+  public long getHighWaterMark() {
+    return highWaterMark.get();
+  }
+
+  public long getGrows() {
+    return grows.sum();
+  }
+
+  /** Returns the number of buffers dropped after use because they grew above the retained size. */
+  public long getDiscards() {
+    return discards.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferMetrics{buffers="
+        + getBuffers()
+        + ", retainedBytes="
+        + getRetainedBytes()
+        + ", highWaterMark="
+        + getHighWaterMark()
+        + ", grows="
+        + getGrows()
+        + ", discards="
+        + getDiscards()
+        + "}";
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters of the schema and plan caches, which can be shared by several caches. */
+public final class CacheMetrics {
+
+  final LongAdder size = new LongAdder();
+  final LongAdder weight = new LongAdder();
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  // The name under which the metrics are published, for the cache miss events
+  private volatile String name;
+
+  public CacheMetrics() {}
+
+  /** Creates the metrics of caches shared by the instances of the function, named once. */
+  CacheMetrics(String name) {
+    this.name = name;
+  }
+
+  /** Returns the number of cached entries. */
+  public long getSize() {
+    return size.sum();
+  }
+
+  /** Returns the total weight of the cached entries. */
+  public long getWeight() {
+    return weight.sum();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  String getName() {
+    return name;
+  }
+
+  void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheMetrics{size="
+        + getSize()
+        + ", weight="
+        + getWeight()
+        + ", hits="
+        + getHits()
+        + ", misses="
+        + getMisses()
+        + ", evictions="
+        + getEvictions()
+        + "}";
+  }
+}
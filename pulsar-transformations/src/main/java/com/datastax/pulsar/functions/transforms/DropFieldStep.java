@@ -15,12 +15,14 @@
  */
 package com.datastax.pulsar.functions.transforms;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.Set;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.pulsar.common.schema.SchemaType;
 
@@ -30,10 +32,14 @@ public class DropFieldStep implements TransformStep {
 
   private final List<String> keyFields;
   private final List<String> valueFields;
-  private final Map<org.apache.avro.Schema, org.apache.avro.Schema> keySchemaCache =
-      new ConcurrentHashMap<>();
-  private final Map<org.apache.avro.Schema, org.apache.avro.Schema> valueSchemaCache =
-      new ConcurrentHashMap<>();
+  private final CacheMetrics keyPlanCacheMetrics = new CacheMetrics();
+  private final CacheMetrics keyPlanFingerprintCacheMetrics = new CacheMetrics();
+  private final CacheMetrics valuePlanCacheMetrics = new CacheMetrics();
+  private final CacheMetrics valuePlanFingerprintCacheMetrics = new CacheMetrics();
+  private final AvroSchemaCache<DropPlan> keyPlanCache =
+      newPlanCache(keyPlanCacheMetrics, keyPlanFingerprintCacheMetrics);
+  private final AvroSchemaCache<DropPlan> valuePlanCache =
+      newPlanCache(valuePlanCacheMetrics, valuePlanFingerprintCacheMetrics);
 
   public DropFieldStep(List<String> keyFields, List<String> valueFields) {
     this.keyFields = keyFields;
@@ -46,10 +52,49 @@ public class DropFieldStep implements TransformStep {
     dropValueFields(valueFields, transformContext);
   }
 
+  @Override
+  public void processBatch(List<TransformContext> batch) {
+    LastPlan<DropPlan> lastKeyPlan = new LastPlan<>();
+    LastPlan<DropPlan> lastValuePlan = new LastPlan<>();
+    for (TransformContext transformContext : batch) {
+      dropKeyFields(keyFields, transformContext, lastKeyPlan);
+      dropValueFields(valueFields, transformContext, lastValuePlan);
+    }
+  }
+
+  @Override
+  public Map<String, CacheMetrics> getCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    cacheMetrics.put("drop-fields.key-plans", keyPlanCacheMetrics);
+    cacheMetrics.put("drop-fields.key-plans.fingerprints", keyPlanFingerprintCacheMetrics);
+    cacheMetrics.put("drop-fields.value-plans", valuePlanCacheMetrics);
+    cacheMetrics.put("drop-fields.value-plans.fingerprints", valuePlanFingerprintCacheMetrics);
+    return cacheMetrics;
+  }
+
   public void dropValueFields(List<String> fields, TransformContext record) {
-    if (record.getValueSchema().getSchemaInfo().getType() == SchemaType.AVRO) {
+    dropValueFields(fields, record, null);
+  }
+
+  private void dropValueFields(
+      List<String> fields, TransformContext record, LastPlan<DropPlan> lastPlan) {
+    if (!fields.isEmpty() && record.getValueSchema().getSchemaInfo().getType() == SchemaType.AVRO) {
+      byte[] avroBytes = record.getValueAvroBytes();
+      if (avroBytes != null) {
+        DropPlan plan = getPlan(fields, record.getValueAvroSchema(), valuePlanCache, lastPlan);
+        byte[] newBytes = plan.apply(avroBytes);
+        if (newBytes != null) {
+          if (newBytes != avroBytes) {
+            record.setValueAvroBytes(plan.schema, newBytes);
+            record.setValueModified(true);
+          }
+          return;
+        }
+      }
       GenericRecord avroRecord = (GenericRecord) record.getValueObject();
-      GenericRecord newRecord = dropFields(fields, avroRecord, valueSchemaCache);
+      GenericRecord newRecord =
+          getPlan(fields, avroRecord.getSchema(), valuePlanCache, lastPlan)
+              .apply(avroRecord, record);
       if (avroRecord != newRecord) {
         record.setValueModified(true);
       }
@@ -58,10 +103,29 @@ public class DropFieldStep implements TransformStep {
   }
 
   public void dropKeyFields(List<String> fields, TransformContext record) {
-    if (record.getKeyObject() != null
-        && record.getValueSchema().getSchemaInfo().getType() == SchemaType.AVRO) {
+    dropKeyFields(fields, record, null);
+  }
+
+  private void dropKeyFields(
+      List<String> fields, TransformContext record, LastPlan<DropPlan> lastPlan) {
+    if (!fields.isEmpty()
+        && record.getKeySchema() != null
+        && record.getKeySchema().getSchemaInfo().getType() == SchemaType.AVRO) {
+      byte[] avroBytes = record.getKeyAvroBytes();
+      if (avroBytes != null) {
+        DropPlan plan = getPlan(fields, record.getKeyAvroSchema(), keyPlanCache, lastPlan);
+        byte[] newBytes = plan.apply(avroBytes);
+        if (newBytes != null) {
+          if (newBytes != avroBytes) {
+            record.setKeyAvroBytes(plan.schema, newBytes);
+            record.setKeyModified(true);
+          }
+          return;
+        }
+      }
       GenericRecord avroRecord = (GenericRecord) record.getKeyObject();
-      GenericRecord newRecord = dropFields(fields, avroRecord, keySchemaCache);
+      GenericRecord newRecord =
+          getPlan(fields, avroRecord.getSchema(), keyPlanCache, lastPlan).apply(avroRecord, record);
       if (avroRecord != newRecord) {
         record.setKeyModified(true);
       }
@@ -69,38 +133,130 @@ public class DropFieldStep implements TransformStep {
     }
   }
 
-  private GenericRecord dropFields(
+  boolean dropsKeyFields() {
+    return !keyFields.isEmpty();
+  }
+
+  boolean dropsValueFields() {
+    return !valueFields.isEmpty();
+  }
+
+  DropPlan getKeyPlan(org.apache.avro.Schema avroSchema) {
+    return getPlan(keyFields, avroSchema, keyPlanCache);
+  }
+
+  DropPlan getValuePlan(org.apache.avro.Schema avroSchema) {
+    return getPlan(valueFields, avroSchema, valuePlanCache);
+  }
+
+  private static AvroSchemaCache<DropPlan> newPlanCache(
+      CacheMetrics metrics, CacheMetrics fingerprintMetrics) {
+    return new AvroSchemaCache<>(
+        AvroSchemaCache.DEFAULT_MAX_SIZE,
+        AvroSchemaCache.DEFAULT_MAX_WEIGHT,
+        plan -> plan.positions == null ? 1 : plan.positions.length + 1,
+        metrics,
+        fingerprintMetrics);
+  }
+
+  private DropPlan getPlan(
       List<String> fields,
-      GenericRecord record,
-      Map<org.apache.avro.Schema, org.apache.avro.Schema> schemaCache) {
-    org.apache.avro.Schema avroSchema = record.getSchema();
-    if (schemaCache.get(avroSchema) != null
-        || fields.stream().anyMatch(field -> avroSchema.getField(field) != null)) {
+      org.apache.avro.Schema avroSchema,
+      AvroSchemaCache<DropPlan> planCache,
+      LastPlan<DropPlan> lastPlan) {
+    if (lastPlan == null) {
+      return getPlan(fields, avroSchema, planCache);
+    }
+    DropPlan plan = lastPlan.get(null, avroSchema);
+    return plan != null
+        ? plan
+        : lastPlan.set(null, avroSchema, getPlan(fields, avroSchema, planCache));
+  }
+
+  private DropPlan getPlan(
+      List<String> fields, org.apache.avro.Schema avroSchema, AvroSchemaCache<DropPlan> planCache) {
+    DropPlan plan = planCache.get(avroSchema);
+    if (plan == null) {
+      plan = planCache.computeIfAbsent(avroSchema, schema -> DropPlan.compile(schema, fields));
+    }
+    return plan;
+  }
+
+  /**
+   * The projection of an input schema without the dropped fields. It is computed once per input
+   * schema so that records are copied by position, and encoded records are copied by blocks of
+   * retained fields.
+   */
+  static class DropPlan {
+    // null when none of the fields to drop is present in the input schema
+    final org.apache.avro.Schema schema;
+    // The position in the input schema of each retained field
+    final int[] positions;
+    private final AvroRecordSplicer splicer;
+
+    private DropPlan(org.apache.avro.Schema schema, int[] positions, AvroRecordSplicer splicer) {
+      this.schema = schema;
+      this.positions = positions;
+      this.splicer = splicer;
+    }
+
+    static DropPlan compile(org.apache.avro.Schema avroSchema, List<String> fields) {
+      Set<String> droppedFields = new HashSet<>(fields);
+      List<org.apache.avro.Schema.Field> inputFields = avroSchema.getFields();
+      List<org.apache.avro.Schema.Field> outputFields = new ArrayList<>(inputFields.size());
+      int[] positions = new int[inputFields.size()];
+      for (org.apache.avro.Schema.Field f : inputFields) {
+        if (!droppedFields.contains(f.name())) {
+          positions[outputFields.size()] = f.pos();
+          outputFields.add(
+              new org.apache.avro.Schema.Field(
+                  f.name(), f.schema(), f.doc(), f.defaultVal(), f.order()));
+        }
+      }
+      if (outputFields.size() == inputFields.size()) {
+        return new DropPlan(null, null, null);
+      }
       org.apache.avro.Schema modified =
-          schemaCache.computeIfAbsent(
-              avroSchema,
-              schema ->
-                  org.apache.avro.Schema.createRecord(
-                      avroSchema.getName(),
-                      avroSchema.getDoc(),
-                      avroSchema.getNamespace(),
-                      avroSchema.isError(),
-                      avroSchema
-                          .getFields()
-                          .stream()
-                          .filter(f -> !fields.contains(f.name()))
-                          .map(
-                              f ->
-                                  new org.apache.avro.Schema.Field(
-                                      f.name(), f.schema(), f.doc(), f.defaultVal(), f.order()))
-                          .collect(Collectors.toList())));
-
-      GenericRecord newRecord = new GenericData.Record(modified);
-      for (org.apache.avro.Schema.Field field : modified.getFields()) {
-        newRecord.put(field.name(), record.get(field.name()));
+          org.apache.avro.Schema.createRecord(
+              avroSchema.getName(),
+              avroSchema.getDoc(),
+              avroSchema.getNamespace(),
+              avroSchema.isError(),
+              outputFields);
+      int[] retained = Arrays.copyOf(positions, outputFields.size());
+      // All the retained fields come from the single input of the splicer
+      AvroRecordSplicer splicer =
+          new AvroRecordSplicer(avroSchema, null, new int[retained.length], retained);
+      return new DropPlan(modified, retained, splicer);
+    }
+
+    GenericRecord apply(GenericRecord record, TransformContext transformContext) {
+      if (schema == null) {
+        return record;
+      }
+      GenericRecord newRecord = transformContext.newRecord(schema);
+      for (int i = 0; i < positions.length; i++) {
+        newRecord.put(i, record.get(positions[i]));
       }
       return newRecord;
     }
-    return record;
+
+    /**
+     * Drops the fields from an encoded record without decoding it.
+     *
+     * @return the encoded record without the dropped fields, or null if the payload does not match
+     *     the input schema
+     */
+    byte[] apply(byte[] avroBytes) {
+      if (schema == null) {
+        return avroBytes;
+      }
+      try {
+        return splicer.splice(avroBytes, null);
+      } catch (IllegalArgumentException e) {
+        log.debug("Could not drop fields from the encoded record, falling back to decoding", e);
+        return null;
+      }
+    }
   }
 }
@@ -0,0 +1,550 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.common.schema.SchemaType;
+
+/**
+ * Applies a run of consecutive <code>drop-fields</code> and <code>merge-key-value</code> steps as a
+ * single step.
+ *
+ * <p>For each pair of input key and value schemas, the schemas produced by the steps are computed
+ * once, together with the input field that each output field comes from. The output key and value
+ * are then built in a single pass over the input records, or spliced from their encodings, instead
+ * of building intermediate records at every step. Records that the fused plan doesn't cover, such
+ * as non-AVRO ones, go through the steps one by one.
+ *
+ * <p>When the output can't be spliced, for instance because a merged field has different schemas in
+ * the key and the value, the encoded input key and value are decoded with reader schemas that only
+ * have the fields used by the output. The other fields are skipped by the Avro resolving decoder,
+ * so that the cost of decoding follows the width of the output rather than the width of the input.
+ *
+ * <p>When <code>specialize</code> is set, each plan also generates a copier for the records it
+ * builds with {@link RecordCopiers}, in which the positions of the fields are constants. The class
+ * of the copier is unloaded when the plan is evicted from the plan cache.
+ */
+@Slf4j
+final class FusedStructuralStep implements TransformStep {
+
+  private static final int KEY = AvroRecordSplicer.FIRST;
+  private static final int VALUE = AvroRecordSplicer.SECOND;
+  // Value schemas cached per key schema
+  private static final int MAX_VALUE_SCHEMAS = 64;
+
+  private final List<TransformStep> steps;
+  private final boolean specialize;
+  private final CacheMetrics planCacheMetrics = new CacheMetrics();
+  private final CacheMetrics planFingerprintCacheMetrics = new CacheMetrics();
+  private final CacheMetrics keySchemaCacheMetrics = new CacheMetrics();
+  private final CacheMetrics keySchemaFingerprintCacheMetrics = new CacheMetrics();
+  private final AvroSchemaCache<AvroSchemaCache<FusedPlan>> keyValuePlanCache =
+      new AvroSchemaCache<>(
+          AvroSchemaCache.DEFAULT_MAX_SIZE,
+          AvroSchemaCache.DEFAULT_MAX_SIZE,
+          valuePlans -> 1,
+          keySchemaCacheMetrics,
+          keySchemaFingerprintCacheMetrics,
+          // Removes the plans of an evicted key schema from the plan metrics
+          AvroSchemaCache::clear);
+  private final AvroSchemaCache<FusedPlan> valuePlanCache =
+      newPlanCache(AvroSchemaCache.DEFAULT_MAX_SIZE);
+
+  FusedStructuralStep(List<TransformStep> steps) {
+    this(steps, false);
+  }
+
+  FusedStructuralStep(List<TransformStep> steps, boolean specialize) {
+    for (TransformStep step : steps) {
+      if (!isFusible(step)) {
+        throw new IllegalArgumentException("step can't be fused: " + step);
+      }
+    }
+    this.steps = new ArrayList<>(steps);
+    this.specialize = specialize;
+  }
+
+  static boolean isFusible(TransformStep step) {
+    return step instanceof DropFieldStep || step instanceof MergeKeyValueStep;
+  }
+
+  @Override
+  public void process(TransformContext transformContext) throws Exception {
+    process(transformContext, null);
+  }
+
+  @Override
+  public void processBatch(List<TransformContext> batch) throws Exception {
+    LastPlan<FusedPlan> lastPlan = new LastPlan<>();
+    for (TransformContext transformContext : batch) {
+      process(transformContext, lastPlan);
+    }
+  }
+
+  private void process(TransformContext transformContext, LastPlan<FusedPlan> lastPlan)
+      throws Exception {
+    Schema<?> keySchema = transformContext.getKeySchema();
+    if (!isAvro(transformContext.getValueSchema()) || (keySchema != null && !isAvro(keySchema))) {
+      for (TransformStep step : steps) {
+        step.process(transformContext);
+      }
+      return;
+    }
+    if (!applyToAvroBytes(transformContext, lastPlan)) {
+      applyToRecords(transformContext, lastPlan);
+    }
+  }
+
+  @Override
+  public Map<String, CacheMetrics> getCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    cacheMetrics.put("fused.key-schemas", keySchemaCacheMetrics);
+    cacheMetrics.put("fused.key-schemas.fingerprints", keySchemaFingerprintCacheMetrics);
+    cacheMetrics.put("fused.plans", planCacheMetrics);
+    cacheMetrics.put("fused.plans.fingerprints", planFingerprintCacheMetrics);
+    return cacheMetrics;
+  }
+
+  /** Returns the steps applied by this step, whose caches are also used by the fused plans. */
+  List<TransformStep> getSteps() {
+    return Collections.unmodifiableList(steps);
+  }
+
+  /**
+   * Builds the output key and value by splicing the encodings of the input key and value, when they
+   * are known.
+   *
+   * @return true if the plan was applied
+   */
+  private boolean applyToAvroBytes(TransformContext transformContext, LastPlan<FusedPlan> lastPlan)
+      throws IOException {
+    boolean keyValue = transformContext.getKeySchema() != null;
+    byte[] keyBytes = keyValue ? transformContext.getKeyAvroBytes() : null;
+    byte[] valueBytes = transformContext.getValueAvroBytes();
+    if ((keyValue && keyBytes == null) || valueBytes == null) {
+      return false;
+    }
+    FusedPlan plan =
+        getPlan(
+            keyValue ? transformContext.getKeyAvroSchema() : null,
+            transformContext.getValueAvroSchema(),
+            lastPlan);
+    if (plan.projected != null) {
+      try {
+        plan.projected.apply(transformContext, keyBytes, valueBytes);
+      } catch (IOException | RuntimeException e) {
+        // Truncated or malformed encodings fail in the resolving decoder with unchecked exceptions
+        log.debug("Could not read the key and value, falling back to decoded records", e);
+        return false;
+      }
+      return true;
+    }
+    byte[] newKeyBytes;
+    byte[] newValueBytes;
+    try {
+      newKeyBytes = plan.key.modified ? plan.key.splicer.splice(keyBytes, valueBytes) : null;
+      newValueBytes = plan.value.modified ? plan.value.splicer.splice(keyBytes, valueBytes) : null;
+    } catch (IllegalArgumentException e) {
+      log.debug("Could not splice the key and value, falling back to decoded records", e);
+      return false;
+    }
+    if (plan.key.modified) {
+      transformContext.setKeyAvroBytes(plan.key.schema, newKeyBytes);
+      transformContext.setKeyModified(true);
+    }
+    if (plan.value.modified) {
+      transformContext.setValueAvroBytes(plan.value.schema, newValueBytes);
+      transformContext.setValueModified(true);
+    }
+    return true;
+  }
+
+  private void applyToRecords(TransformContext transformContext, LastPlan<FusedPlan> lastPlan) {
+    boolean keyValue = transformContext.getKeySchema() != null;
+    GenericRecord keyRecord = keyValue ? (GenericRecord) transformContext.getKeyObject() : null;
+    GenericRecord valueRecord = (GenericRecord) transformContext.getValueObject();
+    FusedPlan plan =
+        getPlan(keyValue ? keyRecord.getSchema() : null, valueRecord.getSchema(), lastPlan);
+    GenericRecord[] records = new GenericRecord[] {keyRecord, valueRecord};
+    if (plan.key.modified) {
+      transformContext.setKeyObject(plan.key.apply(records, transformContext));
+      transformContext.setKeyModified(true);
+    }
+    if (plan.value.modified) {
+      transformContext.setValueObject(plan.value.apply(records, transformContext));
+      transformContext.setValueModified(true);
+    }
+  }
+
+  private FusedPlan getPlan(
+      org.apache.avro.Schema keySchema,
+      org.apache.avro.Schema valueSchema,
+      LastPlan<FusedPlan> lastPlan) {
+    if (lastPlan == null) {
+      return getPlan(keySchema, valueSchema);
+    }
+    FusedPlan plan = lastPlan.get(keySchema, valueSchema);
+    return plan != null
+        ? plan
+        : lastPlan.set(keySchema, valueSchema, getPlan(keySchema, valueSchema));
+  }
+
+  private FusedPlan getPlan(org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema) {
+    AvroSchemaCache<FusedPlan> valuePlans =
+        keySchema == null ? valuePlanCache : keyValuePlanCache.get(keySchema);
+    FusedPlan plan = valuePlans == null ? null : valuePlans.get(valueSchema);
+    return plan != null ? plan : addPlan(keySchema, valueSchema);
+  }
+
+  /**
+   * Adds the plan of a pair of schemas. All the plans of the step share its weight bound: when they
+   * exceed it, they are all evicted. Plans are added under a lock so that none is added to a cache
+   * of value schemas that was evicted.
+   */
+  private synchronized FusedPlan addPlan(
+      org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema) {
+    AvroSchemaCache<FusedPlan> valuePlans = valuePlanCache;
+    if (keySchema != null) {
+      valuePlans =
+          keyValuePlanCache.computeIfAbsent(keySchema, s -> newPlanCache(MAX_VALUE_SCHEMAS));
+    }
+    FusedPlan plan = valuePlans.computeIfAbsent(valueSchema, schema -> compile(keySchema, schema));
+    if (planCacheMetrics.getWeight() > AvroSchemaCache.DEFAULT_MAX_WEIGHT) {
+      keyValuePlanCache.clear(AvroSchemaCache::clear);
+      valuePlanCache.clear();
+    }
+    return plan;
+  }
+
+  private AvroSchemaCache<FusedPlan> newPlanCache(int maxSize) {
+    // All the plans are counted together, whatever their key schema
+    return new AvroSchemaCache<>(
+        maxSize,
+        AvroSchemaCache.DEFAULT_MAX_WEIGHT,
+        plan -> plan.key.positions.length + plan.value.positions.length + 1,
+        planCacheMetrics,
+        planFingerprintCacheMetrics);
+  }
+
+  /**
+   * Runs the steps on the schemas, composing the plans of the steps into the input field of each
+   * output field.
+   */
+  private FusedPlan compile(org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema) {
+    Projection key = keySchema == null ? null : Projection.of(keySchema, KEY);
+    Projection value = Projection.of(valueSchema, VALUE);
+    for (TransformStep step : steps) {
+      if (step instanceof DropFieldStep) {
+        DropFieldStep dropFieldStep = (DropFieldStep) step;
+        if (key != null && dropFieldStep.dropsKeyFields()) {
+          key = key.drop(dropFieldStep.getKeyPlan(key.schema));
+        }
+        if (dropFieldStep.dropsValueFields()) {
+          value = value.drop(dropFieldStep.getValuePlan(value.schema));
+        }
+      } else if (key != null) {
+        value = key.merge(value, ((MergeKeyValueStep) step).getPlan(key.schema, value.schema));
+      }
+    }
+    boolean keyModified = key != null && key.modified;
+    ProjectedPlan projected = null;
+    if ((keyModified && !key.spliceable) || (value.modified && !value.spliceable)) {
+      projected =
+          ProjectedPlan.compile(
+              keySchema,
+              valueSchema,
+              keyModified ? key : null,
+              value.modified ? value : null,
+              specialize);
+    }
+    return new FusedPlan(
+        key == null ? SidePlan.UNMODIFIED : key.compile(keySchema, valueSchema, specialize),
+        value.compile(keySchema, valueSchema, specialize),
+        projected);
+  }
+
+  private static boolean isAvro(Schema<?> schema) {
+    return schema.getSchemaInfo().getType() == SchemaType.AVRO;
+  }
+
+  private static class FusedPlan {
+    private final SidePlan key;
+    private final SidePlan value;
+    // null if the output is spliced from the input encodings
+    private final ProjectedPlan projected;
+
+    private FusedPlan(SidePlan key, SidePlan value, ProjectedPlan projected) {
+      this.key = key;
+      this.value = value;
+      this.projected = projected;
+    }
+  }
+
+  /**
+   * Builds the output key and value from the input key and value decoded with reader schemas that
+   * only have the input fields used by the output.
+   */
+  private static class ProjectedPlan {
+    // null if no field of the input is used
+    private final GenericDatumReader<GenericRecord> keyReader;
+    private final GenericDatumReader<GenericRecord> valueReader;
+    private final SidePlan key;
+    private final SidePlan value;
+
+    private ProjectedPlan(
+        GenericDatumReader<GenericRecord> keyReader,
+        GenericDatumReader<GenericRecord> valueReader,
+        SidePlan key,
+        SidePlan value) {
+      this.keyReader = keyReader;
+      this.valueReader = valueReader;
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * @param key the projection of the output key, or null if the key is not modified
+     * @param value the projection of the output value, or null if the value is not modified
+     */
+    static ProjectedPlan compile(
+        org.apache.avro.Schema keySchema,
+        org.apache.avro.Schema valueSchema,
+        Projection key,
+        Projection value,
+        boolean specialize) {
+      boolean[][] used = new boolean[2][];
+      used[KEY] = new boolean[keySchema == null ? 0 : keySchema.getFields().size()];
+      used[VALUE] = new boolean[valueSchema.getFields().size()];
+      for (Projection projection : new Projection[] {key, value}) {
+        if (projection != null) {
+          for (int i = 0; i < projection.positions.length; i++) {
+            used[projection.inputs[i]][projection.positions[i]] = true;
+          }
+        }
+      }
+      int[][] readerPositions = new int[2][];
+      readerPositions[KEY] = readerPositions(used[KEY]);
+      readerPositions[VALUE] = readerPositions(used[VALUE]);
+      return new ProjectedPlan(
+          newReader(keySchema, used[KEY]),
+          newReader(valueSchema, used[VALUE]),
+          key == null
+              ? SidePlan.UNMODIFIED
+              : key.remap(readerPositions).compile(null, null, specialize),
+          value == null
+              ? SidePlan.UNMODIFIED
+              : value.remap(readerPositions).compile(null, null, specialize));
+    }
+
+    void apply(TransformContext transformContext, byte[] keyBytes, byte[] valueBytes)
+        throws IOException {
+      GenericRecord[] records = new GenericRecord[2];
+      if (keyReader != null) {
+        records[KEY] = GenericRecordSerializer.deserialize(keyReader, keyBytes);
+      }
+      if (valueReader != null) {
+        records[VALUE] = GenericRecordSerializer.deserialize(valueReader, valueBytes);
+      }
+      if (key.modified) {
+        transformContext.setKeyObject(key.apply(records, transformContext));
+        transformContext.setKeyModified(true);
+      }
+      if (value.modified) {
+        transformContext.setValueObject(value.apply(records, transformContext));
+        transformContext.setValueModified(true);
+      }
+    }
+
+    /** Returns the position of each used field in the reader schema, or -1 if it's not used. */
+    private static int[] readerPositions(boolean[] used) {
+      int[] positions = new int[used.length];
+      int position = 0;
+      for (int i = 0; i < used.length; i++) {
+        positions[i] = used[i] ? position++ : -1;
+      }
+      return positions;
+    }
+
+    private static GenericDatumReader<GenericRecord> newReader(
+        org.apache.avro.Schema writerSchema, boolean[] used) {
+      if (writerSchema == null) {
+        return null;
+      }
+      List<org.apache.avro.Schema.Field> fields = new ArrayList<>();
+      for (org.apache.avro.Schema.Field f : writerSchema.getFields()) {
+        if (used[f.pos()]) {
+          fields.add(
+              new org.apache.avro.Schema.Field(
+                  f.name(), f.schema(), f.doc(), f.defaultVal(), f.order()));
+        }
+      }
+      if (fields.isEmpty()) {
+        return null;
+      }
+      // The reader schema keeps the full name of the writer schema so that they resolve
+      org.apache.avro.Schema readerSchema =
+          org.apache.avro.Schema.createRecord(
+              writerSchema.getName(),
+              writerSchema.getDoc(),
+              writerSchema.getNamespace(),
+              writerSchema.isError(),
+              fields);
+      return GenericRecordSerializer.newProjectingReader(writerSchema, readerSchema);
+    }
+  }
+
+  /** The fields of the key or value at some step, by the input and position they come from. */
+  private static class Projection {
+    private final org.apache.avro.Schema schema;
+    private final int[] inputs;
+    private final int[] positions;
+    private final boolean modified;
+    // false if a field is taken from an input field of a different schema
+    private final boolean spliceable;
+
+    private Projection(
+        org.apache.avro.Schema schema,
+        int[] inputs,
+        int[] positions,
+        boolean modified,
+        boolean spliceable) {
+      this.schema = schema;
+      this.inputs = inputs;
+      this.positions = positions;
+      this.modified = modified;
+      this.spliceable = spliceable;
+    }
+
+    static Projection of(org.apache.avro.Schema schema, int input) {
+      int size = schema.getFields().size();
+      int[] inputs = new int[size];
+      int[] positions = new int[size];
+      for (int i = 0; i < size; i++) {
+        inputs[i] = input;
+        positions[i] = i;
+      }
+      return new Projection(schema, inputs, positions, false, true);
+    }
+
+    Projection drop(DropFieldStep.DropPlan plan) {
+      if (plan.schema == null) {
+        return this;
+      }
+      int[] newInputs = new int[plan.positions.length];
+      int[] newPositions = new int[plan.positions.length];
+      for (int i = 0; i < plan.positions.length; i++) {
+        newInputs[i] = inputs[plan.positions[i]];
+        newPositions[i] = positions[plan.positions[i]];
+      }
+      return new Projection(plan.schema, newInputs, newPositions, true, spliceable);
+    }
+
+    /** Merges this key projection with a value projection. */
+    Projection merge(Projection value, MergeKeyValueStep.MergePlan plan) {
+      int size = plan.schema.getFields().size();
+      int[] newInputs = new int[size];
+      int[] newPositions = new int[size];
+      for (int i = 0; i < plan.keySources.length; i++) {
+        newInputs[plan.keyTargets[i]] = inputs[plan.keySources[i]];
+        newPositions[plan.keyTargets[i]] = positions[plan.keySources[i]];
+      }
+      for (int i = 0; i < plan.valueSources.length; i++) {
+        newInputs[plan.valueTargets[i]] = value.inputs[plan.valueSources[i]];
+        newPositions[plan.valueTargets[i]] = value.positions[plan.valueSources[i]];
+      }
+      return new Projection(
+          plan.schema,
+          newInputs,
+          newPositions,
+          true,
+          spliceable && value.spliceable && plan.splicer != null);
+    }
+
+    /**
+     * Returns this projection over input records that only have some of their fields, given the
+     * position of each input field in them.
+     */
+    Projection remap(int[][] readerPositions) {
+      int[] newPositions = new int[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+        newPositions[i] = readerPositions[inputs[i]][positions[i]];
+      }
+      return new Projection(schema, inputs, newPositions, modified, false);
+    }
+
+    SidePlan compile(
+        org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema, boolean specialize) {
+      if (!modified) {
+        return SidePlan.UNMODIFIED;
+      }
+      AvroRecordSplicer splicer =
+          spliceable ? new AvroRecordSplicer(keySchema, valueSchema, inputs, positions) : null;
+      BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier =
+          specialize ? RecordCopiers.generate(inputs, positions) : null;
+      return new SidePlan(schema, inputs, positions, splicer, copier);
+    }
+  }
+
+  /** Builds the output key or value from the input key and value. */
+  private static class SidePlan {
+    private static final SidePlan UNMODIFIED =
+        new SidePlan(null, new int[0], new int[0], null, null);
+
+    private final org.apache.avro.Schema schema;
+    private final int[] inputs;
+    private final int[] positions;
+    private final AvroRecordSplicer splicer;
+    // null if the records are built by the generic loop
+    private final BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier;
+    private final boolean modified;
+
+    private SidePlan(
+        org.apache.avro.Schema schema,
+        int[] inputs,
+        int[] positions,
+        AvroRecordSplicer splicer,
+        BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier) {
+      this.schema = schema;
+      this.inputs = inputs;
+      this.positions = positions;
+      this.splicer = splicer;
+      this.copier = copier;
+      this.modified = schema != null;
+    }
+
+    GenericRecord apply(GenericRecord[] records, TransformContext transformContext) {
+      GenericData.Record newRecord = transformContext.newRecord(schema);
+      if (copier != null) {
+        return copier.apply(newRecord, records);
+      }
+      for (int i = 0; i < positions.length; i++) {
+        newRecord.put(i, records[inputs[i]].get(positions[i]));
+      }
+      return newRecord;
+    }
+  }
+}
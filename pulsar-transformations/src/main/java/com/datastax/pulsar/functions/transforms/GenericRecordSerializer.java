@@ -0,0 +1,218 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+/**
+ * Serializes Avro {@link GenericRecord}s to the Avro binary encoding and back.
+ *
+ * <p>Writers and readers are cached per schema, in caches shared by all the instances of the
+ * function whose metrics are returned by {@link #getCacheMetrics()}, and each thread reuses its own
+ * encoder, decoder and growable buffer, so that the only allocation in steady state is the
+ * exact-size output array. The output is a heap array because that's what the Pulsar client takes
+ * from {@link org.apache.pulsar.client.api.Schema#encode}. The sizes of the buffers are reported by
+ * {@link #getBufferMetrics()}.
+ */
+public final class GenericRecordSerializer {
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  // Buffers grown above this size by a large record are dropped after use instead of being retained
+  private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+  private static final int MAX_CACHED_SCHEMAS = 1024;
+
+  private static final CacheMetrics writerCacheMetrics = new CacheMetrics("serializer.writers");
+  private static final CacheMetrics writerFingerprintCacheMetrics =
+      new CacheMetrics("serializer.writers.fingerprints");
+  private static final CacheMetrics readerCacheMetrics = new CacheMetrics("serializer.readers");
+  private static final CacheMetrics readerFingerprintCacheMetrics =
+      new CacheMetrics("serializer.readers.fingerprints");
+  private static final AvroSchemaCache<GenericDatumWriter<GenericRecord>> writers =
+      new AvroSchemaCache<>(
+          MAX_CACHED_SCHEMAS,
+          MAX_CACHED_SCHEMAS,
+          writer -> 1,
+          writerCacheMetrics,
+          writerFingerprintCacheMetrics);
+  private static final AvroSchemaCache<GenericDatumReader<GenericRecord>> readers =
+      new AvroSchemaCache<>(
+          MAX_CACHED_SCHEMAS,
+          MAX_CACHED_SCHEMAS,
+          reader -> 1,
+          readerCacheMetrics,
+          readerFingerprintCacheMetrics);
+  private static final ThreadLocal<EncoderState> encoderState =
+      ThreadLocal.withInitial(EncoderState::new);
+  private static final ThreadLocal<BinaryDecoder> decoder = new ThreadLocal<>();
+  private static final BufferMetrics bufferMetrics = new BufferMetrics();
+
+  private GenericRecordSerializer() {}
+
+  public static byte[] serialize(GenericRecord record) throws IOException {
+    EncoderState state = encoderState.get();
+    GenericDatumWriter<GenericRecord> writer = state.getWriter(record.getSchema());
+    GrowableByteArrayOutputStream buffer = state.buffer;
+    buffer.reset();
+    try {
+      state.encoder = EncoderFactory.get().directBinaryEncoder(buffer, state.encoder);
+      writer.write(record, state.encoder);
+      bufferMetrics.highWaterMark.accumulate(buffer.size());
+      return buffer.toByteArray();
+    } finally {
+      buffer.trim(MAX_RETAINED_BUFFER_SIZE);
+    }
+  }
+
+  public static GenericRecord deserialize(org.apache.avro.Schema schema, byte[] bytes)
+      throws IOException {
+    GenericDatumReader<GenericRecord> reader =
+        readers.computeIfAbsent(schema, GenericRecordSerializer::newReader);
+    return deserialize(reader, bytes);
+  }
+
+  /**
+   * Returns a reader of the records written with <code>writerSchema</code> into records of <code>
+   * readerSchema</code>. The fields missing from the reader schema are skipped by the resolving
+   * decoder without being decoded.
+   */
+  static GenericDatumReader<GenericRecord> newProjectingReader(
+      org.apache.avro.Schema writerSchema, org.apache.avro.Schema readerSchema) {
+    return new GenericDatumReader<>(writerSchema, readerSchema);
+  }
+
+  static GenericRecord deserialize(GenericDatumReader<GenericRecord> reader, byte[] bytes)
+      throws IOException {
+    BinaryDecoder binaryDecoder = DecoderFactory.get().binaryDecoder(bytes, decoder.get());
+    decoder.set(binaryDecoder);
+    return reader.read(null, binaryDecoder);
+  }
+
+  public static BufferMetrics getBufferMetrics() {
+    return bufferMetrics;
+  }
+
+  /** Returns the metrics of the caches of writers and readers, by cache name. */
+  static Map<String, CacheMetrics> getCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    cacheMetrics.put(writerCacheMetrics.getName(), writerCacheMetrics);
+    cacheMetrics.put(writerFingerprintCacheMetrics.getName(), writerFingerprintCacheMetrics);
+    cacheMetrics.put(readerCacheMetrics.getName(), readerCacheMetrics);
+    cacheMetrics.put(readerFingerprintCacheMetrics.getName(), readerFingerprintCacheMetrics);
+    return cacheMetrics;
+  }
+
+  private static GenericDatumWriter<GenericRecord> newWriter(org.apache.avro.Schema schema) {
+    return new GenericDatumWriter<>(schema);
+  }
+
+  private static GenericDatumReader<GenericRecord> newReader(org.apache.avro.Schema schema) {
+    return new GenericDatumReader<>(schema);
+  }
+
+  private static class EncoderState {
+    private final GrowableByteArrayOutputStream buffer =
+        new GrowableByteArrayOutputStream(INITIAL_BUFFER_SIZE, bufferMetrics);
+    private BinaryEncoder encoder;
+    private org.apache.avro.Schema lastSchema;
+    private GenericDatumWriter<GenericRecord> lastWriter;
+
+    private GenericDatumWriter<GenericRecord> getWriter(org.apache.avro.Schema schema) {
+      // Consecutive records usually share the same schema instance
+      if (schema != lastSchema) {
+        lastWriter = writers.computeIfAbsent(schema, GenericRecordSerializer::newWriter);
+        lastSchema = schema;
+      }
+      return lastWriter;
+    }
+  }
+
+  /** An unsynchronized {@link java.io.ByteArrayOutputStream} that can be reset and trimmed. */
+  static class GrowableByteArrayOutputStream extends OutputStream {
+    private final int initialSize;
+    private final BufferMetrics metrics;
+    private byte[] buf;
+    private int count;
+    // The length of buf, read by the metrics from other threads
+    private volatile int capacity;
+
+    GrowableByteArrayOutputStream(int initialSize, BufferMetrics metrics) {
+      this.initialSize = initialSize;
+      this.metrics = metrics;
+      this.buf = new byte[initialSize];
+      this.capacity = initialSize;
+      metrics.register(this);
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count] = (byte) b;
+      count += 1;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    void reset() {
+      count = 0;
+    }
+
+    int size() {
+      return count;
+    }
+
+    int capacity() {
+      return capacity;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+
+    void trim(int maxRetainedSize) {
+      if (buf.length > maxRetainedSize) {
+        metrics.discards.increment();
+        buf = new byte[initialSize];
+        capacity = initialSize;
+        count = 0;
+      }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+      if (minCapacity > buf.length) {
+        int newLength = Math.max(minCapacity, buf.length << 1);
+        metrics.grows.increment();
+        buf = Arrays.copyOf(buf, newLength);
+        capacity = newLength;
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.avro.SchemaNormalization;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+/**
+ * Emits JDK Flight Recorder events for the execution of the steps, the misses of the schema and
+ * plan caches and the serialization of the records sent.
+ *
+ * <p>The events are disabled by default. They are enabled in the settings of a recording, for
+ * instance with <code>-XX:StartFlightRecording:settings=transforms.jfc</code> where <code>
+ * transforms.jfc</code> sets <code>com.datastax.pulsar.functions.transforms.Step#enabled</code> to
+ * true. While they are disabled, or when the JVM has no Flight Recorder, <code>begin*</code>
+ * returns null without allocating and <code>commit*</code> does nothing.
+ *
+ * <p>The event classes are only loaded if the JVM has the <code>jdk.jfr</code> API, which isn't the
+ * case of Java 8 runtimes older than 8u262.
+ */
+final class JfrEvents {
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private JfrEvents() {}
+
+  /** Returns a started step event, or null if it is disabled. */
+  static Object beginStep() {
+    return AVAILABLE ? Events.beginStep() : null;
+  }
+
+  /**
+   * @param records the number of records processed, more than 1 for a batch
+   * @param modified whether the step replaced the key or value of any record
+   */
+  static void commitStep(
+      Object event, String stepType, int stepIndex, int records, boolean modified) {
+    if (event != null) {
+      Events.commitStep(event, stepType, stepIndex, records, modified);
+    }
+  }
+
+  /** Returns a started cache miss event, or null if it is disabled. */
+  static Object beginCacheMiss() {
+    return AVAILABLE ? Events.beginCacheMiss() : null;
+  }
+
+  /** @param key the key that was missing, usually a schema */
+  static void commitCacheMiss(Object event, String cache, Object key) {
+    if (event != null) {
+      Events.commitCacheMiss(event, cache, key);
+    }
+  }
+
+  /** Returns a started serialization event, or null if it is disabled. */
+  static Object beginSerialization() {
+    return AVAILABLE ? Events.beginSerialization() : null;
+  }
+
+  static void commitSerialization(Object event, org.apache.avro.Schema schema, int bytes) {
+    if (event != null) {
+      Events.commitSerialization(event, schema, bytes);
+    }
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /** Describes a schema well enough to tell its versions apart. */
+  private static String describe(Object key) {
+    if (key instanceof org.apache.avro.Schema) {
+      org.apache.avro.Schema schema = (org.apache.avro.Schema) key;
+      return schema.getFullName()
+          + " fingerprint "
+          + Long.toHexString(SchemaNormalization.parsingFingerprint64(schema));
+    }
+    if (key instanceof org.apache.pulsar.client.api.Schema) {
+      SchemaInfo schemaInfo = ((org.apache.pulsar.client.api.Schema<?>) key).getSchemaInfo();
+      return schemaInfo.getType() + " " + schemaInfo.getName();
+    }
+    return String.valueOf(key);
+  }
+
+  /** Only loaded if the JVM has the Flight Recorder. */
+  private static final class Events {
+    // Whether an event type is enabled doesn't depend on the instance it is checked on
+    private static final StepEvent STEP = new StepEvent();
+    private static final CacheMissEvent CACHE_MISS = new CacheMissEvent();
+    private static final SerializationEvent SERIALIZATION = new SerializationEvent();
+
+    static Object beginStep() {
+      if (!STEP.isEnabled()) {
+        return null;
+      }
+      StepEvent event = new StepEvent();
+      event.begin();
+      return event;
+    }
+
+    static void commitStep(
+        Object event, String stepType, int stepIndex, int records, boolean modified) {
+      StepEvent stepEvent = (StepEvent) event;
+      stepEvent.end();
+      if (stepEvent.shouldCommit()) {
+        stepEvent.stepType = stepType;
+        stepEvent.stepIndex = stepIndex;
+        stepEvent.records = records;
+        stepEvent.modified = modified;
+        stepEvent.commit();
+      }
+    }
+
+    static Object beginCacheMiss() {
+      if (!CACHE_MISS.isEnabled()) {
+        return null;
+      }
+      CacheMissEvent event = new CacheMissEvent();
+      event.begin();
+      return event;
+    }
+
+    static void commitCacheMiss(Object event, String cache, Object key) {
+      CacheMissEvent cacheMissEvent = (CacheMissEvent) event;
+      cacheMissEvent.end();
+      if (cacheMissEvent.shouldCommit()) {
+        cacheMissEvent.cache = cache;
+        cacheMissEvent.key = describe(key);
+        cacheMissEvent.commit();
+      }
+    }
+
+    static Object beginSerialization() {
+      if (!SERIALIZATION.isEnabled()) {
+        return null;
+      }
+      SerializationEvent event = new SerializationEvent();
+      event.begin();
+      return event;
+    }
+
+    static void commitSerialization(Object event, org.apache.avro.Schema schema, int bytes) {
+      SerializationEvent serializationEvent = (SerializationEvent) event;
+      serializationEvent.end();
+      if (serializationEvent.shouldCommit()) {
+        serializationEvent.schema = schema.getFullName();
+        serializationEvent.bytes = bytes;
+        serializationEvent.commit();
+      }
+    }
+  }
+
+  @Name("com.datastax.pulsar.functions.transforms.Step")
+  @Label("Transform Step")
+  @Description("Execution of a step of the transform function")
+  @Category({"Pulsar", "Transformations"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class StepEvent extends Event {
+    @Label("Step Type")
+    String stepType;
+
+    @Label("Step Index")
+    int stepIndex;
+
+    @Label("Records")
+    int records;
+
+    @Label("Modified")
+    @Description("Whether the step replaced the key or value of any record")
+    boolean modified;
+  }
+
+  @Name("com.datastax.pulsar.functions.transforms.CacheMiss")
+  @Label("Transform Cache Miss")
+  @Description("Miss of a schema or plan cache, lasting the time spent building the cached value")
+  @Category({"Pulsar", "Transformations"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class CacheMissEvent extends Event {
+    @Label("Cache")
+    String cache;
+
+    @Label("Key")
+    @Description("The missing key, usually a schema with its fingerprint")
+    String key;
+  }
+
+  @Name("com.datastax.pulsar.functions.transforms.Serialization")
+  @Label("Transform Serialization")
+  @Description("Serialization of the key or value of an output record")
+  @Category({"Pulsar", "Transformations"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class SerializationEvent extends Event {
+    @Label("Schema")
+    String schema;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+  }
+}
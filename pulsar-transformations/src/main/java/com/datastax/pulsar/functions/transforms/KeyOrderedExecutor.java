@@ -0,0 +1,108 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed number of lanes, each backed by a single thread. Tasks of the same key
+ * always run on the same lane, so they run in the order they were submitted. Tasks without a key
+ * all run on the first lane, so they also keep their order.
+ *
+ * <p>Each lane queues a bounded number of tasks, and {@link #execute} blocks while the lane of the
+ * task is full, so that a slow lane slows down the caller instead of buffering without bound.
+ */
+final class KeyOrderedExecutor {
+
+  private final ExecutorService[] lanes;
+
+  KeyOrderedExecutor(int laneCount, int queueSize) {
+    if (laneCount < 1) {
+      throw new IllegalArgumentException("the number of lanes must be positive");
+    }
+    if (queueSize < 1) {
+      throw new IllegalArgumentException("the lane queue size must be positive");
+    }
+    lanes = new ExecutorService[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      String threadName = "transform-lane-" + i;
+      lanes[i] =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              0L,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(queueSize),
+              runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+              },
+              new BlockWhenFull());
+    }
+  }
+
+  void execute(String key, Runnable task) {
+    lanes[laneOf(key)].execute(task);
+  }
+
+  int laneOf(String key) {
+    if (key == null) {
+      return 0;
+    }
+    int hash = key.hashCode() ^ (key.hashCode() >>> 16); // spread the high bits
+    return Math.floorMod(hash, lanes.length);
+  }
+
+  /**
+   * Stops accepting tasks and waits until the queued tasks have run.
+   *
+   * @return false if the timeout elapsed first
+   */
+  boolean shutdown(long timeoutMillis) throws InterruptedException {
+    for (ExecutorService lane : lanes) {
+      lane.shutdown();
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (ExecutorService lane : lanes) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (!lane.awaitTermination(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class BlockWhenFull implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("the executor is shut down");
+      }
+      try {
+        executor.getQueue().put(task);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("interrupted while waiting for a free lane slot", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+/**
+ * Remembers the plan resolved for the last key and value schemas of a batch, so that a run of
+ * records of the same schemas resolves its plan once.
+ */
+final class LastPlan<P> {
+  private org.apache.avro.Schema keySchema;
+  private org.apache.avro.Schema valueSchema;
+  private P plan;
+
+  /** Returns the plan of the given schemas if they are the last ones, or null. */
+  P get(org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema) {
+    return keySchema == this.keySchema && valueSchema == this.valueSchema ? plan : null;
+  }
+
+  P set(org.apache.avro.Schema keySchema, org.apache.avro.Schema valueSchema, P plan) {
+    this.keySchema = keySchema;
+    this.valueSchema = valueSchema;
+    this.plan = plan;
+    return plan;
+  }
+}
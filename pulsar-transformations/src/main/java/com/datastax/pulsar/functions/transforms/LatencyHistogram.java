@@ -0,0 +1,121 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with a relative precision of about 6%, in the manner
+ * of HdrHistogram. Values below 32 have their own bucket, and each power of two above is split into
+ * 16 buckets.
+ *
+ * <p>Recording is a single atomic increment. {@link #snapshotAndReset()} takes the counts recorded
+ * since the previous snapshot so that percentiles can be exported per interval.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT >> 1;
+  // Enough buckets for any positive long
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  public void record(long value) {
+    counts.incrementAndGet(indexOf(Math.max(0, value)));
+  }
+
+  /** Returns the values recorded since the previous snapshot, and starts a new interval. */
+  public Snapshot snapshotAndReset() {
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (counts.get(i) != 0) {
+        snapshot[i] = counts.getAndSet(i, 0);
+      }
+    }
+    return new Snapshot(snapshot);
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+    return SUB_BUCKET_COUNT
+        + (shift - 1) * HALF_SUB_BUCKET_COUNT
+        + subBucket
+        - HALF_SUB_BUCKET_COUNT;
+  }
+
+  /** Returns the highest value that falls in the bucket of the given index. */
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+    long highest = ((subBucket + 1) << shift) - 1;
+    // The highest bucket ends past Long.MAX_VALUE
+    return highest < 0 ? Long.MAX_VALUE : highest;
+  }
+
+  /** The counts of a histogram over an interval. */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long totalCount;
+
+    private Snapshot(long[] counts) {
+      this.counts = counts;
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      this.totalCount = total;
+    }
+
+    public long getTotalCount() {
+      return totalCount;
+    }
+
+    /**
+     * Returns the value at the given quantile, between 0 and 1, as the highest value of its bucket,
+     * or 0 if no value was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+      long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+      long cumulated = 0;
+      for (int i = 0; i < counts.length; i++) {
+        cumulated += counts[i];
+        if (cumulated >= rank) {
+          return highestValueOf(i);
+        }
+      }
+      return 0;
+    }
+
+    public long getMaxValue() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] != 0) {
+          return highestValueOf(i);
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -15,12 +15,12 @@
  */
 package com.datastax.pulsar.functions.transforms;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.common.schema.SchemaType;
@@ -28,70 +28,248 @@ import org.apache.pulsar.common.schema.SchemaType;
 @Slf4j
 public class MergeKeyValueStep implements TransformStep {
 
-  private final Map<org.apache.avro.Schema, Map<org.apache.avro.Schema, org.apache.avro.Schema>>
-      schemaCache = new ConcurrentHashMap<>();
+  // Value schemas cached per key schema
+  private static final int MAX_VALUE_SCHEMAS = 64;
+
+  private final CacheMetrics planCacheMetrics = new CacheMetrics();
+  private final CacheMetrics planFingerprintCacheMetrics = new CacheMetrics();
+  private final CacheMetrics keySchemaCacheMetrics = new CacheMetrics();
+  private final CacheMetrics keySchemaFingerprintCacheMetrics = new CacheMetrics();
+  private final AvroSchemaCache<AvroSchemaCache<MergePlan>> planCache =
+      new AvroSchemaCache<>(
+          AvroSchemaCache.DEFAULT_MAX_SIZE,
+          AvroSchemaCache.DEFAULT_MAX_SIZE,
+          valuePlans -> 1,
+          keySchemaCacheMetrics,
+          keySchemaFingerprintCacheMetrics,
+          // Removes the plans of an evicted key schema from the plan metrics
+          AvroSchemaCache::clear);
 
   @Override
   public void process(TransformContext transformContext) {
+    process(transformContext, null);
+  }
+
+  @Override
+  public void processBatch(List<TransformContext> batch) {
+    LastPlan<MergePlan> lastPlan = new LastPlan<>();
+    for (TransformContext transformContext : batch) {
+      process(transformContext, lastPlan);
+    }
+  }
+
+  private void process(TransformContext transformContext, LastPlan<MergePlan> lastPlan) {
     Schema<?> keySchema = transformContext.getKeySchema();
     if (keySchema == null) {
       return;
     }
     if (keySchema.getSchemaInfo().getType() == SchemaType.AVRO
         && transformContext.getValueSchema().getSchemaInfo().getType() == SchemaType.AVRO) {
+      if (mergeAvroBytes(transformContext, lastPlan)) {
+        return;
+      }
       GenericRecord avroKeyRecord = (GenericRecord) transformContext.getKeyObject();
-      org.apache.avro.Schema avroKeySchema = avroKeyRecord.getSchema();
-
       GenericRecord avroValueRecord = (GenericRecord) transformContext.getValueObject();
-      org.apache.avro.Schema avroValueSchema = avroValueRecord.getSchema();
-
-      List<String> valueSchemaFieldNames =
-          avroValueSchema
-              .getFields()
-              .stream()
-              .map(org.apache.avro.Schema.Field::name)
-              .collect(Collectors.toList());
-      List<org.apache.avro.Schema.Field> fields =
-          avroKeySchema
-              .getFields()
-              .stream()
-              .filter(field -> !valueSchemaFieldNames.contains(field.name()))
-              .map(
-                  f ->
-                      new org.apache.avro.Schema.Field(
-                          f.name(), f.schema(), f.doc(), f.defaultVal(), f.order()))
-              .collect(Collectors.toList());
-      fields.addAll(
-          avroValueSchema
-              .getFields()
-              .stream()
-              .map(
-                  f ->
-                      new org.apache.avro.Schema.Field(
-                          f.name(), f.schema(), f.doc(), f.defaultVal(), f.order()))
-              .collect(Collectors.toList()));
-
-      Map<org.apache.avro.Schema, org.apache.avro.Schema> schemaCacheKey =
-          schemaCache.computeIfAbsent(avroKeySchema, s -> new ConcurrentHashMap<>());
+      MergePlan plan = getPlan(avroKeyRecord.getSchema(), avroValueRecord.getSchema(), lastPlan);
+      transformContext.setValueObject(plan.apply(avroKeyRecord, avroValueRecord, transformContext));
+      transformContext.setValueModified(true);
+    }
+  }
+
+  /**
+   * Merges the key and value by splicing their Avro binary encodings, when both are known.
+   *
+   * @return true if the value was replaced by the merged encoding
+   */
+  private boolean mergeAvroBytes(TransformContext transformContext, LastPlan<MergePlan> lastPlan) {
+    byte[] keyBytes = transformContext.getKeyAvroBytes();
+    byte[] valueBytes = transformContext.getValueAvroBytes();
+    if (keyBytes == null || valueBytes == null) {
+      return false;
+    }
+    MergePlan plan =
+        getPlan(
+            transformContext.getKeyAvroSchema(), transformContext.getValueAvroSchema(), lastPlan);
+    if (plan.splicer == null) {
+      return false;
+    }
+    byte[] merged;
+    try {
+      merged = plan.splicer.splice(keyBytes, valueBytes);
+    } catch (IllegalArgumentException e) {
+      log.debug("Could not splice the key and value, falling back to decoded records", e);
+      return false;
+    }
+    transformContext.setValueAvroBytes(plan.schema, merged);
+    transformContext.setValueModified(true);
+    return true;
+  }
+
+  @Override
+  public Map<String, CacheMetrics> getCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    cacheMetrics.put("merge-key-value.key-schemas", keySchemaCacheMetrics);
+    cacheMetrics.put("merge-key-value.key-schemas.fingerprints", keySchemaFingerprintCacheMetrics);
+    cacheMetrics.put("merge-key-value.plans", planCacheMetrics);
+    cacheMetrics.put("merge-key-value.plans.fingerprints", planFingerprintCacheMetrics);
+    return cacheMetrics;
+  }
+
+  private AvroSchemaCache<MergePlan> newValuePlanCache() {
+    // All the plans are counted together, whatever their key schema
+    return new AvroSchemaCache<>(
+        MAX_VALUE_SCHEMAS,
+        AvroSchemaCache.DEFAULT_MAX_WEIGHT,
+        plan -> plan.keySources.length + plan.valueSources.length + 1,
+        planCacheMetrics,
+        planFingerprintCacheMetrics);
+  }
+
+  private MergePlan getPlan(
+      org.apache.avro.Schema avroKeySchema,
+      org.apache.avro.Schema avroValueSchema,
+      LastPlan<MergePlan> lastPlan) {
+    if (lastPlan == null) {
+      return getPlan(avroKeySchema, avroValueSchema);
+    }
+    MergePlan plan = lastPlan.get(avroKeySchema, avroValueSchema);
+    return plan != null
+        ? plan
+        : lastPlan.set(avroKeySchema, avroValueSchema, getPlan(avroKeySchema, avroValueSchema));
+  }
+
+  MergePlan getPlan(org.apache.avro.Schema avroKeySchema, org.apache.avro.Schema avroValueSchema) {
+    AvroSchemaCache<MergePlan> valuePlans = planCache.get(avroKeySchema);
+    MergePlan plan = valuePlans == null ? null : valuePlans.get(avroValueSchema);
+    return plan != null ? plan : addPlan(avroKeySchema, avroValueSchema);
+  }
+
+  /**
+   * Adds the plan of a pair of schemas. The plans of all the key schemas share the weight bound of
+   * the step: when they exceed it, they are all evicted. Plans are added under a lock so that none
+   * is added to a cache of value schemas that was evicted.
+   */
+  private synchronized MergePlan addPlan(
+      org.apache.avro.Schema avroKeySchema, org.apache.avro.Schema avroValueSchema) {
+    AvroSchemaCache<MergePlan> valuePlans =
+        planCache.computeIfAbsent(avroKeySchema, s -> newValuePlanCache());
+    MergePlan plan =
+        valuePlans.computeIfAbsent(
+            avroValueSchema, schema -> MergePlan.compile(avroKeySchema, schema));
+    if (planCacheMetrics.getWeight() > AvroSchemaCache.DEFAULT_MAX_WEIGHT) {
+      planCache.clear(AvroSchemaCache::clear);
+    }
+    return plan;
+  }
+
+  /**
+   * The merged schema of a key schema and a value schema, with the positions to copy from the key
+   * and value records. The key fields that are not in the value come first, followed by the value
+   * fields. When a field is present on both sides, the key data is used.
+   *
+   * <p>The plan also holds a splicer that builds the merged encoding from the key and value
+   * encodings, unless a field present on both sides has different schemas on each side.
+   */
+  static class MergePlan {
+    final org.apache.avro.Schema schema;
+    // null if the merged encoding can't be spliced from the key and value encodings
+    final AvroRecordSplicer splicer;
+    final int[] keySources;
+    final int[] keyTargets;
+    final int[] valueSources;
+    final int[] valueTargets;
+
+    private MergePlan(
+        org.apache.avro.Schema schema,
+        AvroRecordSplicer splicer,
+        int[] keySources,
+        int[] keyTargets,
+        int[] valueSources,
+        int[] valueTargets) {
+      this.schema = schema;
+      this.splicer = splicer;
+      this.keySources = keySources;
+      this.keyTargets = keyTargets;
+      this.valueSources = valueSources;
+      this.valueTargets = valueTargets;
+    }
+
+    static MergePlan compile(
+        org.apache.avro.Schema avroKeySchema, org.apache.avro.Schema avroValueSchema) {
+      List<org.apache.avro.Schema.Field> fields = new ArrayList<>();
+      List<Integer> keySources = new ArrayList<>();
+      List<Integer> keyTargets = new ArrayList<>();
+      List<Integer> valueSources = new ArrayList<>();
+      List<Integer> valueTargets = new ArrayList<>();
+      // The input and position of each merged field, in order, for the splicer
+      int outputSize = avroKeySchema.getFields().size() + avroValueSchema.getFields().size();
+      int[] spliceInputs = new int[outputSize];
+      int[] splicePositions = new int[outputSize];
+      boolean spliceable = true;
+      for (org.apache.avro.Schema.Field f : avroKeySchema.getFields()) {
+        if (avroValueSchema.getField(f.name()) == null) {
+          spliceInputs[fields.size()] = AvroRecordSplicer.FIRST;
+          splicePositions[fields.size()] = f.pos();
+          keySources.add(f.pos());
+          keyTargets.add(fields.size());
+          fields.add(copyField(f));
+        }
+      }
+      for (org.apache.avro.Schema.Field f : avroValueSchema.getFields()) {
+        org.apache.avro.Schema.Field keyField = avroKeySchema.getField(f.name());
+        if (keyField != null) {
+          spliceable &= keyField.schema().equals(f.schema());
+          spliceInputs[fields.size()] = AvroRecordSplicer.FIRST;
+          splicePositions[fields.size()] = keyField.pos();
+          keySources.add(keyField.pos());
+          keyTargets.add(fields.size());
+        } else {
+          spliceInputs[fields.size()] = AvroRecordSplicer.SECOND;
+          splicePositions[fields.size()] = f.pos();
+          valueSources.add(f.pos());
+          valueTargets.add(fields.size());
+        }
+        fields.add(copyField(f));
+      }
       org.apache.avro.Schema modified =
-          schemaCacheKey.computeIfAbsent(
-              avroValueSchema,
-              schema ->
-                  org.apache.avro.Schema.createRecord(
-                      avroValueSchema.getName(),
-                      null,
-                      avroValueSchema.getNamespace(),
-                      false,
-                      fields));
-      GenericRecord newRecord = new GenericData.Record(modified);
-      for (String fieldName : valueSchemaFieldNames) {
-        newRecord.put(fieldName, avroValueRecord.get(fieldName));
+          org.apache.avro.Schema.createRecord(
+              avroValueSchema.getName(), null, avroValueSchema.getNamespace(), false, fields);
+      AvroRecordSplicer splicer =
+          spliceable
+              ? new AvroRecordSplicer(
+                  avroKeySchema,
+                  avroValueSchema,
+                  Arrays.copyOf(spliceInputs, fields.size()),
+                  Arrays.copyOf(splicePositions, fields.size()))
+              : null;
+      return new MergePlan(
+          modified,
+          splicer,
+          toArray(keySources),
+          toArray(keyTargets),
+          toArray(valueSources),
+          toArray(valueTargets));
+    }
+
+    GenericRecord apply(
+        GenericRecord keyRecord, GenericRecord valueRecord, TransformContext transformContext) {
+      GenericRecord newRecord = transformContext.newRecord(schema);
+      for (int i = 0; i < keySources.length; i++) {
+        newRecord.put(keyTargets[i], keyRecord.get(keySources[i]));
       }
-      for (org.apache.avro.Schema.Field field : avroKeySchema.getFields()) {
-        newRecord.put(field.name(), avroKeyRecord.get(field.name()));
+      for (int i = 0; i < valueSources.length; i++) {
+        newRecord.put(valueTargets[i], valueRecord.get(valueSources[i]));
       }
-      transformContext.setValueObject(newRecord);
-      transformContext.setValueModified(true);
+      return newRecord;
+    }
+
+    private static org.apache.avro.Schema.Field copyField(org.apache.avro.Schema.Field f) {
+      return new org.apache.avro.Schema.Field(
+          f.name(), f.schema(), f.doc(), f.defaultVal(), f.order());
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      return list.stream().mapToInt(Integer::intValue).toArray();
     }
   }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import org.apache.pulsar.functions.api.Context;
+
+/**
+ * Publishes metrics through {@link Context#recordMetric} at most once per interval.
+ *
+ * <p>Pulsar records each value as an observation of a summary. Counters are therefore published as
+ * the increase since their last publication, so that the sum of their summary is their total, and
+ * gauges are published as their current value. Histograms are published as the count and the
+ * percentiles of the values recorded since their last publication.
+ */
+final class MetricsPublisher {
+
+  private final long intervalMillis;
+  private final Map<String, LongSupplier> counters = new LinkedHashMap<>();
+  private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+  private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+  private final Map<String, Long> published = new HashMap<>();
+  private volatile long nextPublication;
+
+  MetricsPublisher(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  void addCounter(String name, LongSupplier counter) {
+    counters.put(name, counter);
+  }
+
+  void addGauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  void addHistogram(String name, LatencyHistogram histogram) {
+    histograms.put(name, histogram);
+  }
+
+  /** Publishes the metrics if the interval elapsed since their last publication. */
+  void maybePublish(Context context) {
+    if (System.currentTimeMillis() >= nextPublication) {
+      synchronized (this) {
+        // Another thread may have published them meanwhile
+        if (System.currentTimeMillis() >= nextPublication) {
+          publish(context);
+        }
+      }
+    }
+  }
+
+  synchronized void publish(Context context) {
+    nextPublication = System.currentTimeMillis() + intervalMillis;
+    for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+      long value = counter.getValue().getAsLong();
+      Long previous = published.put(counter.getKey(), value);
+      long increase = previous == null ? value : value - previous;
+      if (increase != 0) {
+        context.recordMetric(counter.getKey(), increase);
+      }
+    }
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+      context.recordMetric(gauge.getKey(), gauge.getValue().getAsLong());
+    }
+    for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+      LatencyHistogram.Snapshot snapshot = histogram.getValue().snapshotAndReset();
+      if (snapshot.getTotalCount() == 0) {
+        continue;
+      }
+      String name = histogram.getKey();
+      context.recordMetric(name + ".count", snapshot.getTotalCount());
+      context.recordMetric(name + ".p50", snapshot.getValueAtQuantile(0.5));
+      context.recordMetric(name + ".p99", snapshot.getValueAtQuantile(0.99));
+      context.recordMetric(name + ".p999", snapshot.getValueAtQuantile(0.999));
+      context.recordMetric(name + ".max", snapshot.getMaxValue());
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects items into batches that are handed to a consumer when they reach a maximum size, or when
+ * their first item has waited for a maximum delay. Batches are handed over one at a time, in the
+ * order of their items.
+ *
+ * <p>The consumer runs outside of the lock of the pending batch, so that items can be added while a
+ * batch is handled.
+ */
+final class MicroBatcher<T> {
+
+  private final int maxSize;
+  private final long maxDelayMillis;
+  private final Consumer<List<T>> handler;
+  private final ScheduledExecutorService scheduler;
+  private List<T> batch;
+  // Identifies the current batch so that a timer does not flush a later batch
+  private long batchNumber;
+  // Guards handledBatches, the number of the next batch to hand over
+  private final Object handlerLock = new Object();
+  private long handledBatches;
+
+  MicroBatcher(int maxSize, long maxDelayMillis, Consumer<List<T>> handler) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("the batch size must be positive");
+    }
+    if (maxDelayMillis < 1) {
+      throw new IllegalArgumentException("the batch delay must be positive");
+    }
+    this.maxSize = maxSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.handler = handler;
+    this.batch = new ArrayList<>(maxSize);
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "transform-batch-flush");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  void add(T item) {
+    List<T> full = null;
+    long fullBatch;
+    synchronized (this) {
+      fullBatch = batchNumber;
+      batch.add(item);
+      if (batch.size() >= maxSize) {
+        full = takeBatch();
+      } else if (batch.size() == 1) {
+        scheduler.schedule(() -> flushIfCurrent(fullBatch), maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      handle(full, fullBatch);
+    }
+  }
+
+  void flush() {
+    List<T> full;
+    long fullBatch;
+    synchronized (this) {
+      fullBatch = batchNumber;
+      full = takeBatch();
+    }
+    if (full != null) {
+      handle(full, fullBatch);
+    }
+  }
+
+  /** Flushes the pending items and stops the timer. */
+  void close() {
+    flush();
+    scheduler.shutdownNow();
+  }
+
+  private void flushIfCurrent(long scheduledBatch) {
+    List<T> full = null;
+    synchronized (this) {
+      if (scheduledBatch == batchNumber) {
+        full = takeBatch();
+      }
+    }
+    if (full != null) {
+      handle(full, scheduledBatch);
+    }
+  }
+
+  /** Replaces the pending batch by an empty one, returning it, or null if it is empty. */
+  private List<T> takeBatch() {
+    if (batch.isEmpty()) {
+      return null;
+    }
+    List<T> full = batch;
+    batch = new ArrayList<>(maxSize);
+    batchNumber++;
+    return full;
+  }
+
+  /** Hands over a batch once the batches taken before it were handed over. */
+  private void handle(List<T> full, long number) {
+    boolean interrupted = false;
+    synchronized (handlerLock) {
+      try {
+        while (handledBatches != number) {
+          try {
+            handlerLock.wait();
+          } catch (InterruptedException e) {
+            // The batch must still be handed over, after the previous ones
+            interrupted = true;
+          }
+        }
+        handler.accept(full);
+      } finally {
+        if (handledBatches == number) {
+          handledBatches++;
+          handlerLock.notifyAll();
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
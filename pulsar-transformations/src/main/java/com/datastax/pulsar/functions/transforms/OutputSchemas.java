@@ -0,0 +1,113 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.KeyValueSchema;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+
+/**
+ * Caches the Pulsar schemas of the output messages.
+ *
+ * <p>Building a Pulsar schema computes its {@link org.apache.pulsar.common.schema.SchemaInfo}, and
+ * the producer hashes the schema info of every message it sends unless it is the same instance as
+ * the previous one. Records that share a schema therefore share a single Pulsar schema instance.
+ */
+final class OutputSchemas {
+
+  private static final int MAX_CACHED_SCHEMAS = 1024;
+  // Value schemas cached per key schema of KeyValue schemas
+  private static final int MAX_VALUE_SCHEMAS = 64;
+
+  private static final CacheMetrics metrics = new CacheMetrics("output-schemas");
+  // Avro schemas cache their hash code, and their equals() returns early for the same instance
+  private static final BoundedCache<org.apache.avro.Schema, Schema<byte[]>> nativeAvroSchemas =
+      new BoundedCache<>(false, MAX_CACHED_SCHEMAS, metrics);
+  private static final BoundedCache<Schema<?>, Schema<byte[]>> passThroughSchemas =
+      new BoundedCache<>(true, MAX_CACHED_SCHEMAS, metrics);
+  private static final BoundedCache<KeyValueSchema<?, ?>, Schema<KeyValue<byte[], byte[]>>>
+      passThroughKeyValueSchemas = new BoundedCache<>(true, MAX_CACHED_SCHEMAS, metrics);
+  private static final BoundedCache<Schema<?>, BoundedCache<Schema<?>, Schema<?>>>[]
+      keyValueSchemas = newKeyValueSchemaCaches();
+
+  private OutputSchemas() {}
+
+  static Schema<byte[]> nativeAvro(org.apache.avro.Schema schema) {
+    Schema<byte[]> nativeAvroSchema = nativeAvroSchemas.get(schema);
+    if (nativeAvroSchema == null) {
+      nativeAvroSchema = nativeAvroSchemas.computeIfAbsent(schema, Schema::NATIVE_AVRO);
+    }
+    return nativeAvroSchema;
+  }
+
+  static Schema<byte[]> passThrough(Schema<?> schema) {
+    Schema<byte[]> passThroughSchema = passThroughSchemas.get(schema);
+    if (passThroughSchema == null) {
+      passThroughSchema = passThroughSchemas.computeIfAbsent(schema, PassThroughSchema::new);
+    }
+    return passThroughSchema;
+  }
+
+  static Schema<KeyValue<byte[], byte[]>> passThroughKeyValue(KeyValueSchema<?, ?> schema) {
+    Schema<KeyValue<byte[], byte[]>> passThroughSchema = passThroughKeyValueSchemas.get(schema);
+    if (passThroughSchema == null) {
+      passThroughSchema =
+          passThroughKeyValueSchemas.computeIfAbsent(schema, PassThroughKeyValueSchema::new);
+    }
+    return passThroughSchema;
+  }
+
+  static Schema<?> keyValue(
+      Schema<?> keySchema, Schema<?> valueSchema, KeyValueEncodingType keyValueEncodingType) {
+    BoundedCache<Schema<?>, BoundedCache<Schema<?>, Schema<?>>> byKeySchema =
+        keyValueSchemas[keyValueEncodingType.ordinal()];
+    BoundedCache<Schema<?>, Schema<?>> byValueSchema = byKeySchema.get(keySchema);
+    if (byValueSchema == null) {
+      byValueSchema = byKeySchema.computeIfAbsent(keySchema, k -> newValueSchemaCache());
+    }
+    Schema<?> keyValueSchema = byValueSchema.get(valueSchema);
+    if (keyValueSchema == null) {
+      keyValueSchema =
+          byValueSchema.computeIfAbsent(
+              valueSchema, v -> Schema.KeyValue(keySchema, v, keyValueEncodingType));
+    }
+    return keyValueSchema;
+  }
+
+  /** Returns the metrics of the caches of output schemas, which are shared by all instances. */
+  static CacheMetrics getCacheMetrics() {
+    return metrics;
+  }
+
+  private static BoundedCache<Schema<?>, Schema<?>> newValueSchemaCache() {
+    return new BoundedCache<>(true, MAX_VALUE_SCHEMAS, metrics);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BoundedCache<Schema<?>, BoundedCache<Schema<?>, Schema<?>>>[]
+      newKeyValueSchemaCaches() {
+    BoundedCache<Schema<?>, BoundedCache<Schema<?>, Schema<?>>>[] caches =
+        new BoundedCache[KeyValueEncodingType.values().length];
+    for (int i = 0; i < caches.length; i++) {
+      // The schemas of an evicted key schema are removed from the metrics
+      caches[i] =
+          new BoundedCache<>(
+              true, MAX_CACHED_SCHEMAS, metrics, byValueSchema -> byValueSchema.clear(v -> {}));
+    }
+    return caches;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.KeyValueSchema;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+/**
+ * A {@link KeyValueSchema} of KeyValue payloads that are already encoded with another KeyValue
+ * schema, like {@link PassThroughSchema} for the other schemas.
+ *
+ * <p>The producer sets the key of a <code>SEPARATED</code> KeyValue as the message key, encoded by
+ * {@link #getKeySchema()}, and its value as the payload, encoded by {@link #getValueSchema()}. Both
+ * publish the bytes as they are. An <code>INLINE</code> KeyValue is encoded by {@link #encode},
+ * which publishes its value as the whole payload: the value then holds the inline encoding of the
+ * input key and value, and the key is null.
+ */
+final class PassThroughKeyValueSchema implements KeyValueSchema<byte[], byte[]> {
+
+  private final SchemaInfo schemaInfo;
+  private final KeyValueEncodingType keyValueEncodingType;
+
+  PassThroughKeyValueSchema(KeyValueSchema<?, ?> schema) {
+    this.schemaInfo = schema.getSchemaInfo();
+    this.keyValueEncodingType = schema.getKeyValueEncodingType();
+  }
+
+  @Override
+  public Schema<byte[]> getKeySchema() {
+    return Schema.BYTES;
+  }
+
+  @Override
+  public Schema<byte[]> getValueSchema() {
+    return Schema.BYTES;
+  }
+
+  @Override
+  public KeyValueEncodingType getKeyValueEncodingType() {
+    return keyValueEncodingType;
+  }
+
+  @Override
+  public byte[] encode(KeyValue<byte[], byte[]> message) {
+    return message.getValue();
+  }
+
+  @Override
+  public KeyValue<byte[], byte[]> decode(byte[] bytes) {
+    return new KeyValue<>(null, bytes);
+  }
+
+  @Override
+  public KeyValue<byte[], byte[]> decode(byte[] bytes, byte[] schemaVersion) {
+    return decode(bytes);
+  }
+
+  @Override
+  public SchemaInfo getSchemaInfo() {
+    return schemaInfo;
+  }
+
+  @Override
+  public Schema<KeyValue<byte[], byte[]>> clone() {
+    return this;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+/**
+ * A {@link Schema} of payloads that are already encoded with another schema.
+ *
+ * <p>Like {@link Schema#AUTO_PRODUCE_BYTES(Schema)}, it publishes the bytes as they are under the
+ * {@link SchemaInfo} of the schema that encoded them, but it doesn't decode them for validation
+ * since they are taken from a message that was produced with that schema.
+ *
+ * <p>The producer takes apart the payloads of KeyValue schemas with their key and value schemas, so
+ * these are republished with a {@link PassThroughKeyValueSchema} instead.
+ */
+final class PassThroughSchema implements Schema<byte[]> {
+
+  private final SchemaInfo schemaInfo;
+
+  PassThroughSchema(Schema<?> schema) {
+    this.schemaInfo = schema.getSchemaInfo();
+  }
+
+  @Override
+  public byte[] encode(byte[] message) {
+    return message;
+  }
+
+  @Override
+  public byte[] decode(byte[] bytes) {
+    return bytes;
+  }
+
+  @Override
+  public byte[] decode(byte[] bytes, byte[] schemaVersion) {
+    return bytes;
+  }
+
+  @Override
+  public SchemaInfo getSchemaInfo() {
+    return schemaInfo;
+  }
+
+  @Override
+  public Schema<byte[]> clone() {
+    return this;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.lang.invoke.MethodHandle;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Template of the classes defined by {@link RecordCopiers}. It is never used from the class loader
+ * of the function: its bytecode is defined again by a class loader per copier, which supplies the
+ * method handle of that copier.
+ *
+ * <p>Since the handle is held by a static final field, it is a constant for the JIT that compiles
+ * {@link #apply}, which can then inline the whole copy. Only JDK types are referenced because the
+ * defined class is not in the runtime package of the other classes of the function.
+ */
+final class RecordCopier implements BiFunction<Object, Object, Object> {
+
+  @SuppressWarnings("unchecked")
+  private static final MethodHandle COPIER =
+      ((Supplier<MethodHandle>) (Object) RecordCopier.class.getClassLoader()).get();
+
+  @Override
+  public Object apply(Object record, Object records) {
+    try {
+      return COPIER.invokeExact(record, records);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+
+/**
+ * Generates copiers that fill a record of a given schema with the fields of a key record and a
+ * value record, with the positions of the fields bound as constants.
+ *
+ * <p>A copier is a chain of method handles without loops, branches or array lookups. Each copier is
+ * invoked from its own class, defined from the bytecode of {@link RecordCopier} by a class loader
+ * per copier, that holds the chain in a static final field. The JIT then compiles a copy specific
+ * to the plan of the copier. The copier is referenced only by its plan, so its class is unloaded
+ * once the plan is evicted from its cache.
+ */
+@Slf4j
+final class RecordCopiers {
+
+  // Copiers of wider records are not generated because they would be too deep to build and inline
+  static final int MAX_FIELDS = 64;
+
+  private static final MethodType COPIER_TYPE =
+      MethodType.methodType(Object.class, Object.class, Object.class);
+  private static final MethodHandle GET;
+  private static final MethodHandle PUT;
+  private static final MethodHandle GET_RECORD =
+      MethodHandles.arrayElementGetter(GenericRecord[].class);
+  // null if the bytecode of the template is not available, then no copier is generated
+  private static final byte[] COPIER_BYTECODE = readCopierBytecode();
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    try {
+      GET =
+          lookup.findVirtual(
+              IndexedRecord.class, "get", MethodType.methodType(Object.class, int.class));
+      PUT =
+          lookup.findVirtual(
+              GenericData.Record.class,
+              "put",
+              MethodType.methodType(void.class, int.class, Object.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private RecordCopiers() {}
+
+  /**
+   * Generates a copier <code>(GenericData.Record record, GenericRecord[] records) -> GenericRecord
+   * </code> that sets all the fields of the output record from the key and value records, and
+   * returns it.
+   *
+   * @param inputs the input ({@link AvroRecordSplicer#FIRST} for the key or {@link
+   *     AvroRecordSplicer#SECOND} for the value) of each output field
+   * @param positions the position in its input record of each output field
+   * @return the copier, or null if the record has too many fields
+   */
+  @SuppressWarnings("unchecked")
+  @SuppressFBWarnings(
+    value = {"DP_CREATE_CLASSLOADER_INSIDE_DO_PRIVILEGED", "DP_DO_INSIDE_DO_PRIVILEGED"},
+    justification = "the class loader only defines the copier class"
+  )
+  static BiFunction<GenericData.Record, GenericRecord[], GenericRecord> generate(
+      int[] inputs, int[] positions) {
+    if (positions.length > MAX_FIELDS || COPIER_BYTECODE == null) {
+      return null;
+    }
+    // (record, records) -> record
+    MethodHandle copier =
+        MethodHandles.dropArguments(
+            MethodHandles.identity(GenericData.Record.class), 1, GenericRecord[].class);
+    for (int i = positions.length - 1; i >= 0; i--) {
+      copier = MethodHandles.foldArguments(copier, copyField(i, inputs[i], positions[i]));
+    }
+    try {
+      Constructor<?> constructor =
+          new CopierClassLoader(copier.asType(COPIER_TYPE))
+              .defineCopierClass()
+              .getDeclaredConstructor();
+      // The copier class is in another runtime package
+      constructor.setAccessible(true);
+      return (BiFunction<GenericData.Record, GenericRecord[], GenericRecord>)
+          constructor.newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not define a record copier", e);
+    }
+  }
+
+  /** Returns a handle <code>(record, records) -> void</code> copying a field to the record. */
+  private static MethodHandle copyField(int target, int input, int position) {
+    // records -> records[input].get(position)
+    MethodHandle get =
+        MethodHandles.filterReturnValue(
+            MethodHandles.insertArguments(GET_RECORD, 1, input),
+            MethodHandles.insertArguments(GET, 1, position)
+                .asType(MethodType.methodType(Object.class, GenericRecord.class)));
+    return MethodHandles.filterArguments(MethodHandles.insertArguments(PUT, 1, target), 1, get);
+  }
+
+  private static byte[] readCopierBytecode() {
+    try (InputStream in =
+        RecordCopiers.class.getResourceAsStream(RecordCopier.class.getSimpleName() + ".class")) {
+      if (in == null) {
+        log.warn("The bytecode of {} was not found, no copier is generated", RecordCopier.class);
+        return null;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      log.warn("Could not read the bytecode of {}, no copier is generated", RecordCopier.class, e);
+      return null;
+    }
+  }
+
+  /** Defines the class of a copier and supplies its method handle when the class is initialized. */
+  private static final class CopierClassLoader extends ClassLoader
+      implements Supplier<MethodHandle> {
+    private final MethodHandle copier;
+
+    private CopierClassLoader(MethodHandle copier) {
+      super(RecordCopiers.class.getClassLoader());
+      this.copier = copier;
+    }
+
+    @Override
+    public MethodHandle get() {
+      return copier;
+    }
+
+    private Class<?> defineCopierClass() {
+      return defineClass(RecordCopier.class.getName(), COPIER_BYTECODE, 0, COPIER_BYTECODE.length);
+    }
+  }
+}
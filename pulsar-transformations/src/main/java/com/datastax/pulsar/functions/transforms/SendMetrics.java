@@ -0,0 +1,58 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters of the messages sent by {@link TransformContext#send()}. */
+public final class SendMetrics {
+
+  final LongAdder messages = new LongAdder();
+  final LongAdder passedThrough = new LongAdder();
+  final LongAdder serializations = new LongAdder();
+  final LongAdder serializationNanos = new LongAdder();
+
+  public long getMessages() {
+    return messages.sum();
+  }
+
+  /** Returns the number of messages that republished the payload of their input message. */
+  public long getPassedThrough() {
+    return passedThrough.sum();
+  }
+
+  /** Returns the number of keys and values serialized from a record. */
+  public long getSerializations() {
+    return serializations.sum();
+  }
+
+  public long getSerializationNanos() {
+    return serializationNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "SendMetrics{messages="
+        + getMessages()
+        + ", passedThrough="
+        + getPassedThrough()
+        + ", serializations="
+        + getSerializations()
+        + ", serializationNanos="
+        + getSerializationNanos()
+        + "}";
+  }
+}
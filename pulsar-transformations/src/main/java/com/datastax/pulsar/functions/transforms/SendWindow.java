@@ -0,0 +1,105 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+/**
+ * Bounds the number of messages that were sent asynchronously and not yet acknowledged by the
+ * broker.
+ *
+ * <p>When the window is adaptive, its size is decreased multiplicatively when a send takes more
+ * than twice the lowest latency observed, and increased additively otherwise, between 1 and the
+ * maximum size. The lowest latency slowly drifts up so that the window recovers after a lasting
+ * change of the broker latency.
+ */
+final class SendWindow {
+
+  private static final double DECREASE_FACTOR = 0.9;
+  private static final int LATENCY_THRESHOLD_FACTOR = 2;
+  // The lowest latency increases by 1/1024th of itself on every send
+  private static final int MIN_LATENCY_DRIFT_SHIFT = 10;
+
+  private final int maxSize;
+  private final boolean adaptive;
+  private double size;
+  private int inFlight;
+  private long minLatencyNanos = Long.MAX_VALUE;
+
+  SendWindow(int maxSize, boolean adaptive) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException(
+          "the maximum number of in-flight messages must be positive");
+    }
+    this.maxSize = maxSize;
+    this.adaptive = adaptive;
+    this.size = maxSize;
+  }
+
+  /** Waits until the window has room for one more message and reserves it. */
+  synchronized void acquire() throws InterruptedException {
+    while (inFlight >= (int) size) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  /** Releases the room of a message that was acknowledged or failed after the given latency. */
+  synchronized void release(long latencyNanos) {
+    inFlight--;
+    if (adaptive) {
+      if (minLatencyNanos != Long.MAX_VALUE) {
+        minLatencyNanos += minLatencyNanos >> MIN_LATENCY_DRIFT_SHIFT;
+      }
+      minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+      if (latencyNanos > LATENCY_THRESHOLD_FACTOR * minLatencyNanos) {
+        size = Math.max(1, size * DECREASE_FACTOR);
+      } else {
+        size = Math.min(maxSize, size + 1 / size);
+      }
+    }
+    notifyAll();
+  }
+
+  /** Releases the room of a message that could not be sent. */
+  synchronized void cancel() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Waits until all the messages were acknowledged or failed.
+   *
+   * @return false if the timeout elapsed first
+   */
+  synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (inFlight > 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  synchronized int getSize() {
+    return (int) size;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+}
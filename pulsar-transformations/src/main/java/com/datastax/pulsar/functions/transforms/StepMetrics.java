@@ -0,0 +1,75 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a step. The duration of the step is only measured for a sample of the records, so
+ * that the records that are not sampled don't pay for reading the clock: its total is the duration
+ * of the sampled invocations, not of all of them.
+ */
+public final class StepMetrics {
+
+  private final LongAdder modified = new LongAdder();
+  private final LongAdder passedThrough = new LongAdder();
+  private final LongAdder sampledInvocations = new LongAdder();
+  private final LongAdder sampledNanos = new LongAdder();
+
+  void record(boolean recordModified) {
+    (recordModified ? modified : passedThrough).increment();
+  }
+
+  void recordSample(int invocations, long nanos) {
+    sampledInvocations.add(invocations);
+    sampledNanos.add(nanos);
+  }
+
+  public long getInvocations() {
+    return getModified() + getPassedThrough();
+  }
+
+  /** Returns the number of records whose key or value was replaced by the step. */
+  public long getModified() {
+    return modified.sum();
+  }
+
+  public long getPassedThrough() {
+    return passedThrough.sum();
+  }
+
+  public long getSampledInvocations() {
+    return sampledInvocations.sum();
+  }
+
+  /** Returns the total duration of the sampled invocations. */
+  public long getSampledNanos() {
+    return sampledNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "StepMetrics{modified="
+        + getModified()
+        + ", passedThrough="
+        + getPassedThrough()
+        + ", sampledInvocations="
+        + getSampledInvocations()
+        + ", sampledNanos="
+        + getSampledNanos()
+        + "}";
+  }
+}
@@ -15,15 +15,22 @@
  */
 package com.datastax.pulsar.functions.transforms;
 
-import java.io.ByteArrayOutputStream;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import lombok.Data;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.EncoderFactory;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.TypedMessageBuilder;
 import org.apache.pulsar.client.api.schema.GenericObject;
@@ -34,10 +41,26 @@ import org.apache.pulsar.common.schema.SchemaType;
 import org.apache.pulsar.functions.api.Context;
 import org.apache.pulsar.functions.api.Record;
 
+/**
+ * The key, value and schemas of a record as they go through the steps, and the output message they
+ * are sent as.
+ *
+ * <p>The context only has getters and setters: its equality is identity and it has no toString(),
+ * as these would resolve the lazily decoded key and value and expose its internal state.
+ */
 @Slf4j
-@Data
+@Getter
+@Setter
 public class TransformContext {
+  // Bounds the records kept for reuse, as a run of schemas would otherwise be retained
+  private static final int MAX_REUSABLE_RECORDS = 64;
+
   private final Context context;
+
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.NONE)
+  private Record<?> inputRecord;
+
   private Schema<?> keySchema;
   private Object keyObject;
   private boolean keyModified;
@@ -49,26 +72,129 @@ public class TransformContext {
   private Map<String, String> properties;
   private String outputTopic;
 
+  // Set to publish asynchronously and ack or fail the input record when the send completes
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.PACKAGE)
+  private SendWindow sendWindow;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.PACKAGE)
+  private SendMetrics sendMetrics;
+
+  // Records the milliseconds from the publication of the input message to the completion of send
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.PACKAGE)
+  private LatencyHistogram endToEndLatency;
+
+  // Incremented each time the key or value or their schema is replaced, to tell which steps
+  // modified the record
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.NONE)
+  private int modifications;
+
+  // The Avro binary encodings of the key and value when they are known, and their schemas.
+  // They are resolved lazily from the input message, or set by steps working on the encoded form.
+  // Steps never modify the key and value objects in place, so the encoding of an object that was
+  // not replaced is still valid when it is written.
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private byte[] keyAvroBytes;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private org.apache.avro.Schema keyAvroSchema;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private byte[] valueAvroBytes;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private org.apache.avro.Schema valueAvroSchema;
+
+  // Whether the key and value are still the ones of the input record
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private boolean keyFromInput;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private boolean valueFromInput = true;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private boolean inputAvroBytesResolved;
+
+  // The AVRO key and value of the input record, unwrapped on first access so that sides that no
+  // step reads are forwarded as they were received
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private org.apache.pulsar.client.api.schema.GenericRecord keyInputRecord;
+
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private org.apache.pulsar.client.api.schema.GenericRecord valueInputRecord;
+
+  // The records built by the steps, by schema, when they are reused from one input record to the
+  // next
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private Map<org.apache.avro.Schema, GenericData.Record> reusableRecords;
+
   public TransformContext(Context context, Object value) {
-    Record<?> currentRecord = context.getCurrentRecord();
     this.context = context;
+    init(value);
+  }
+
+  /**
+   * Resets this context to the current record of its {@link Context}, so that it can be reused once
+   * the previous record was sent. The send settings and the reusable records are kept.
+   */
+  void reset(Object value) {
+    keySchema = null;
+    keyObject = null;
+    keyModified = false;
+    valueSchema = null;
+    valueObject = null;
+    valueModified = false;
+    keyValueEncodingType = null;
+    key = null;
+    properties = null;
+    modifications = 0;
+    keyAvroBytes = null;
+    keyAvroSchema = null;
+    valueAvroBytes = null;
+    valueAvroSchema = null;
+    keyFromInput = false;
+    valueFromInput = true;
+    inputAvroBytesResolved = false;
+    keyInputRecord = null;
+    valueInputRecord = null;
+    init(value);
+  }
+
+  private void init(Object value) {
+    Record<?> currentRecord = context.getCurrentRecord();
+    this.inputRecord = currentRecord;
     this.outputTopic = context.getOutputTopic();
     Schema<?> schema = currentRecord.getSchema();
     if (schema instanceof KeyValueSchema && value instanceof KeyValue) {
       KeyValueSchema kvSchema = (KeyValueSchema) schema;
       KeyValue kv = (KeyValue) value;
       this.keySchema = kvSchema.getKeySchema();
-      this.keyObject =
-          this.keySchema.getSchemaInfo().getType() == SchemaType.AVRO
-              ? ((org.apache.pulsar.client.api.schema.GenericRecord) kv.getKey()).getNativeObject()
-              : kv.getKey();
+      if (isAvro(this.keySchema)) {
+        this.keyInputRecord = (org.apache.pulsar.client.api.schema.GenericRecord) kv.getKey();
+      } else {
+        this.keyObject = kv.getKey();
+      }
       this.valueSchema = kvSchema.getValueSchema();
-      this.valueObject =
-          this.valueSchema.getSchemaInfo().getType() == SchemaType.AVRO
-              ? ((org.apache.pulsar.client.api.schema.GenericRecord) kv.getValue())
-                  .getNativeObject()
-              : kv.getValue();
+      if (isAvro(this.valueSchema)) {
+        this.valueInputRecord = (org.apache.pulsar.client.api.schema.GenericRecord) kv.getValue();
+      } else {
+        this.valueObject = kv.getValue();
+      }
       this.keyValueEncodingType = kvSchema.getKeyValueEncodingType();
+      this.keyFromInput = true;
     } else {
       this.valueSchema = schema;
       this.valueObject = value;
@@ -76,34 +202,247 @@ public class TransformContext {
     }
   }
 
+  /**
+   * Makes the steps reuse the records they build from one input record to the next, instead of
+   * allocating new ones.
+   */
+  void reuseRecords() {
+    if (reusableRecords == null) {
+      reusableRecords = new IdentityHashMap<>();
+    }
+  }
+
+  /**
+   * Returns a record of the given schema for a step to build its output in. All its fields must be
+   * set, as it may be a record reused from a previous input record.
+   */
+  GenericData.Record newRecord(org.apache.avro.Schema schema) {
+    if (reusableRecords == null) {
+      return new GenericData.Record(schema);
+    }
+    // Plans are cached, so their output schemas are the same instances from one record to the next
+    GenericData.Record record = reusableRecords.get(schema);
+    if (record == null) {
+      if (reusableRecords.size() >= MAX_REUSABLE_RECORDS) {
+        reusableRecords.clear();
+      }
+      record = new GenericData.Record(schema);
+      reusableRecords.put(schema, record);
+    }
+    return record;
+  }
+
+  public Object getKeyObject() {
+    if (keyObject == null) {
+      if (keyInputRecord != null) {
+        keyObject = keyInputRecord.getNativeObject();
+        keyInputRecord = null;
+      } else if (keyAvroBytes != null) {
+        keyObject = deserializeGenericRecord(keyAvroSchema, keyAvroBytes);
+      }
+    }
+    return keyObject;
+  }
+
+  public void setKeyObject(Object keyObject) {
+    if (keyObject == null || keyObject != this.keyObject) {
+      this.keyObject = keyObject;
+      this.keyInputRecord = null;
+      this.keyAvroBytes = null;
+      this.keyAvroSchema = null;
+      this.keyFromInput = false;
+      modifications++;
+    }
+  }
+
+  public void setKeySchema(Schema<?> keySchema) {
+    if (keySchema != this.keySchema) {
+      // A known encoding stays valid for decoding the key object until the object is replaced
+      this.keySchema = keySchema;
+      this.keyFromInput = false;
+      modifications++;
+    }
+  }
+
+  /**
+   * Returns the Avro binary encoding of the key, or null if the key is not AVRO or its encoding is
+   * not known. The encoding is known when the key has not been modified since it was read from the
+   * input message or when a step set it with {@link #setKeyAvroBytes}.
+   */
+  @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "avoids copying payloads")
+  public byte[] getKeyAvroBytes() {
+    resolveInputAvroBytes();
+    return keyAvroBytes;
+  }
+
+  /** Returns the Avro schema of {@link #getKeyAvroBytes()}. */
+  public org.apache.avro.Schema getKeyAvroSchema() {
+    resolveInputAvroBytes();
+    return keyAvroSchema;
+  }
+
+  /**
+   * Replaces the key by an Avro binary encoded record. The key object will be decoded from it only
+   * if a later step needs it.
+   */
+  @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "avoids copying payloads")
+  public void setKeyAvroBytes(org.apache.avro.Schema schema, byte[] bytes) {
+    this.keyObject = null;
+    this.keyInputRecord = null;
+    this.keyAvroBytes = bytes;
+    this.keyAvroSchema = schema;
+    this.keyFromInput = false;
+    modifications++;
+  }
+
+  public Object getValueObject() {
+    if (valueObject == null) {
+      if (valueInputRecord != null) {
+        valueObject = valueInputRecord.getNativeObject();
+        valueInputRecord = null;
+      } else if (valueAvroBytes != null) {
+        valueObject = deserializeGenericRecord(valueAvroSchema, valueAvroBytes);
+      }
+    }
+    return valueObject;
+  }
+
+  public void setValueObject(Object valueObject) {
+    if (valueObject == null || valueObject != this.valueObject) {
+      this.valueObject = valueObject;
+      this.valueInputRecord = null;
+      this.valueAvroBytes = null;
+      this.valueAvroSchema = null;
+      this.valueFromInput = false;
+      modifications++;
+    }
+  }
+
+  public void setValueSchema(Schema<?> valueSchema) {
+    if (valueSchema != this.valueSchema) {
+      // A known encoding stays valid for decoding the value object until the object is replaced
+      this.valueSchema = valueSchema;
+      this.valueFromInput = false;
+      modifications++;
+    }
+  }
+
+  /**
+   * Returns the Avro binary encoding of the value, or null if the value is not AVRO or its encoding
+   * is not known.
+   *
+   * @see #getKeyAvroBytes()
+   */
+  @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "avoids copying payloads")
+  public byte[] getValueAvroBytes() {
+    resolveInputAvroBytes();
+    return valueAvroBytes;
+  }
+
+  /** Returns the Avro schema of {@link #getValueAvroBytes()}. */
+  public org.apache.avro.Schema getValueAvroSchema() {
+    resolveInputAvroBytes();
+    return valueAvroSchema;
+  }
+
+  /**
+   * Replaces the value by an Avro binary encoded record. The value object will be decoded from it
+   * only if a later step needs it.
+   */
+  @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "avoids copying payloads")
+  public void setValueAvroBytes(org.apache.avro.Schema schema, byte[] bytes) {
+    this.valueObject = null;
+    this.valueInputRecord = null;
+    this.valueAvroBytes = bytes;
+    this.valueAvroSchema = schema;
+    this.valueFromInput = false;
+    modifications++;
+  }
+
+  private void resolveInputAvroBytes() {
+    if (inputAvroBytesResolved) {
+      return;
+    }
+    inputAvroBytesResolved = true;
+    boolean resolveKey = keyFromInput && isAvro(keySchema);
+    boolean resolveValue = valueFromInput && isAvro(valueSchema);
+    Optional<? extends Message<?>> message = inputRecord.getMessage();
+    if (!(resolveKey || resolveValue) || !message.isPresent()) {
+      return;
+    }
+    byte[] inputKeyBytes = null;
+    byte[] inputValueBytes;
+    if (keyValueEncodingType == KeyValueEncodingType.INLINE) {
+      KeyValue<byte[], byte[]> keyValue = KeyValue.decode(message.get().getData(), KeyValue::new);
+      inputKeyBytes = keyValue.getKey();
+      inputValueBytes = keyValue.getValue();
+    } else {
+      if (keyValueEncodingType == KeyValueEncodingType.SEPARATED && message.get().hasKey()) {
+        inputKeyBytes = message.get().getKeyBytes();
+      }
+      inputValueBytes = message.get().getData();
+    }
+    if (resolveKey && inputKeyBytes != null) {
+      keyAvroSchema = getAvroSchema(keySchema);
+      keyAvroBytes = keyAvroSchema == null ? null : inputKeyBytes;
+    }
+    if (resolveValue && inputValueBytes != null) {
+      valueAvroSchema = getAvroSchema(valueSchema);
+      valueAvroBytes = valueAvroSchema == null ? null : inputValueBytes;
+    }
+  }
+
+  private static boolean isAvro(Schema<?> schema) {
+    return schema != null && schema.getSchemaInfo().getType() == SchemaType.AVRO;
+  }
+
+  private static org.apache.avro.Schema getAvroSchema(Schema<?> schema) {
+    Optional<Object> nativeSchema = schema.getNativeSchema();
+    return nativeSchema.isPresent() && nativeSchema.get() instanceof org.apache.avro.Schema
+        ? (org.apache.avro.Schema) nativeSchema.get()
+        : null;
+  }
+
   public void send() throws IOException {
-    if (keyModified
-        && keySchema != null
-        && keySchema.getSchemaInfo().getType() == SchemaType.AVRO) {
-      GenericRecord genericRecord = (GenericRecord) keyObject;
-      keySchema = Schema.NATIVE_AVRO(genericRecord.getSchema());
-      keyObject = serializeGenericRecord(genericRecord);
+    if (sendUnmodifiedInput()) {
+      return;
     }
-    if (valueModified
-        && valueSchema != null
-        && valueSchema.getSchemaInfo().getType() == SchemaType.AVRO) {
-      GenericRecord genericRecord = (GenericRecord) valueObject;
-      valueSchema = Schema.NATIVE_AVRO(genericRecord.getSchema());
-      valueObject = serializeGenericRecord(genericRecord);
+    if (keyModified && isAvro(keySchema)) {
+      byte[] keyBytes = getKeyAvroBytes();
+      if (keyBytes != null) {
+        keySchema = OutputSchemas.nativeAvro(keyAvroSchema);
+        keyObject = keyBytes;
+      } else {
+        GenericRecord genericRecord = (GenericRecord) getKeyObject();
+        keySchema = OutputSchemas.nativeAvro(genericRecord.getSchema());
+        keyObject = serialize(genericRecord);
+      }
+    }
+    if (valueModified && isAvro(valueSchema)) {
+      byte[] valueBytes = getValueAvroBytes();
+      if (valueBytes != null) {
+        valueSchema = OutputSchemas.nativeAvro(valueAvroSchema);
+        valueObject = valueBytes;
+      } else {
+        GenericRecord genericRecord = (GenericRecord) getValueObject();
+        valueSchema = OutputSchemas.nativeAvro(genericRecord.getSchema());
+        valueObject = serialize(genericRecord);
+      }
     }
 
     Schema outputSchema;
     Object outputObject;
-    GenericObject recordValue = (GenericObject) context.getCurrentRecord().getValue();
+    GenericObject recordValue = (GenericObject) inputRecord.getValue();
     if (keySchema != null) {
-      outputSchema = Schema.KeyValue(keySchema, valueSchema, keyValueEncodingType);
+      outputSchema = OutputSchemas.keyValue(keySchema, valueSchema, keyValueEncodingType);
+      KeyValue inputKeyValue = (KeyValue) recordValue.getNativeObject();
       Object outputKeyObject =
           !keyModified && keySchema.getSchemaInfo().getType().isStruct()
-              ? ((KeyValue) recordValue.getNativeObject()).getKey()
+              ? inputKeyValue.getKey()
               : keyObject;
       Object outputValueObject =
           !valueModified && valueSchema.getSchemaInfo().getType().isStruct()
-              ? ((KeyValue) recordValue.getNativeObject()).getValue()
+              ? inputKeyValue.getValue()
               : valueObject;
       outputObject = new KeyValue(outputKeyObject, outputValueObject);
     } else {
@@ -120,20 +459,141 @@ public class TransformContext {
     TypedMessageBuilder<?> message =
         context
             .newOutputMessage(outputTopic, outputSchema)
-            .properties(
-                properties == null ? context.getCurrentRecord().getProperties() : properties)
+            .properties(properties == null ? inputRecord.getProperties() : properties)
             .value(outputObject);
     if (keySchema == null && key != null) {
       message.key(key);
     }
-    message.send();
+    publish(message);
+    if (sendMetrics != null) {
+      sendMetrics.messages.increment();
+    }
+  }
+
+  private byte[] serialize(GenericRecord record) throws IOException {
+    Object event = JfrEvents.beginSerialization();
+    long start = sendMetrics == null ? 0 : System.nanoTime();
+    byte[] bytes = serializeGenericRecord(record);
+    if (sendMetrics != null) {
+      sendMetrics.serializationNanos.add(System.nanoTime() - start);
+      sendMetrics.serializations.increment();
+    }
+    JfrEvents.commitSerialization(event, record.getSchema(), bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Republishes the payload of the input message as is if neither its key nor its value were
+   * changed by the steps.
+   */
+  private boolean sendUnmodifiedInput() throws IOException {
+    if (keyModified
+        || valueModified
+        || !valueFromInput
+        || (keySchema != null && !keyFromInput)
+        || !inputRecord.getMessage().isPresent()) {
+      return false;
+    }
+    Message<?> inputMessage = inputRecord.getMessage().get();
+    TypedMessageBuilder<?> message;
+    if (keySchema != null) {
+      // The producer takes a KeyValue apart with the key and value schemas of a KeyValueSchema
+      byte[] keyBytes =
+          keyValueEncodingType == KeyValueEncodingType.SEPARATED && inputMessage.hasKey()
+              ? inputMessage.getKeyBytes()
+              : null;
+      message =
+          newPassThroughMessage(
+              OutputSchemas.passThroughKeyValue((KeyValueSchema<?, ?>) inputRecord.getSchema()),
+              new KeyValue<>(keyBytes, inputMessage.getData()));
+    } else if (inputRecord.getSchema().getSchemaInfo().getType() == SchemaType.KEY_VALUE) {
+      // A KeyValue payload without a KeyValueSchema can't be taken apart by the producer
+      return false;
+    } else {
+      message =
+          newPassThroughMessage(
+              OutputSchemas.passThrough(inputRecord.getSchema()), inputMessage.getData());
+      if (key != null) {
+        message.key(key);
+      }
+    }
+    publish(message);
+    if (sendMetrics != null) {
+      sendMetrics.messages.increment();
+      sendMetrics.passedThrough.increment();
+    }
+    return true;
+  }
+
+  private <T> TypedMessageBuilder<T> newPassThroughMessage(Schema<T> outputSchema, T value) {
+    if (log.isDebugEnabled()) {
+      log.debug("output unmodified input message schema {}", outputSchema.getSchemaInfo());
+    }
+    return context
+        .newOutputMessage(outputTopic, outputSchema)
+        .properties(properties == null ? inputRecord.getProperties() : properties)
+        .value(value);
+  }
+
+  private void publish(TypedMessageBuilder<?> message) throws IOException {
+    // The context may be reset for another record before the send completes
+    Record<?> record = inputRecord;
+    if (sendWindow == null) {
+      message.send();
+      recordEndToEndLatency(record);
+      return;
+    }
+    try {
+      sendWindow.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to send");
+    }
+    long start = System.nanoTime();
+    CompletableFuture<MessageId> future;
+    try {
+      future = message.sendAsync();
+    } catch (RuntimeException e) {
+      sendWindow.cancel();
+      throw e;
+    }
+    // Messages are sent in order by the producer, so the order per key is kept
+    future.whenComplete(
+        (messageId, throwable) -> {
+          sendWindow.release(System.nanoTime() - start);
+          if (throwable == null) {
+            recordEndToEndLatency(record);
+            record.ack();
+          } else {
+            log.error("Failed to send message for record {}", record, throwable);
+            record.fail();
+          }
+        });
+  }
+
+  private void recordEndToEndLatency(Record<?> record) {
+    if (endToEndLatency == null) {
+      return;
+    }
+    // The publish time is set by the broker, the event time by the producer
+    Optional<? extends Message<?>> message = record.getMessage();
+    long start =
+        message.isPresent() ? message.get().getPublishTime() : record.getEventTime().orElse(0L);
+    if (start > 0) {
+      endToEndLatency.record(System.currentTimeMillis() - start);
+    }
   }
 
   public static byte[] serializeGenericRecord(GenericRecord record) throws IOException {
-    GenericDatumWriter writer = new GenericDatumWriter(record.getSchema());
-    ByteArrayOutputStream oo = new ByteArrayOutputStream();
-    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(oo, null);
-    writer.write(record, encoder);
-    return oo.toByteArray();
+    return GenericRecordSerializer.serialize(record);
+  }
+
+  private static GenericRecord deserializeGenericRecord(
+      org.apache.avro.Schema schema, byte[] bytes) {
+    try {
+      return GenericRecordSerializer.deserialize(schema, bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException("could not decode Avro record", e);
+    }
   }
 }
@@ -19,10 +19,13 @@ import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pulsar.client.api.schema.GenericObject;
 import org.apache.pulsar.common.schema.SchemaType;
@@ -75,17 +78,130 @@ import org.apache.pulsar.functions.api.Record;
  * }
  * </code></pre>
  *
+ * <p>The optional boolean <code>specialize</code> parameter, next to <code>steps</code>, makes the
+ * <code>drop-fields</code> and <code>merge-key-value</code> steps build records with copiers
+ * generated for each input schema. Each copier has its own class, that is unloaded when the plan of
+ * its schema is evicted from the plan cache.
+ *
+ * <p>When the optional boolean <code>send-async</code> parameter is set, the output messages are
+ * sent asynchronously and the input record is acknowledged, or failed, when the send completes. The
+ * function must then be deployed with <code>autoAck</code> disabled, see below. The number of
+ * messages in flight is bounded by the <code>max-in-flight</code> parameter (default 1000). When
+ * the boolean <code>adaptive-window</code> parameter is set, this bound shrinks while the send
+ * latency rises and grows back when it recovers. The messages are sent in the order of the input
+ * records so the order per key is preserved.
+ *
+ * <p>When the optional <code>lanes</code> parameter is greater than 1, the steps run on that many
+ * threads. The records are assigned to a lane by key so that the records of a key are processed and
+ * sent in order. The records without a message key, such as those of <code>INLINE</code> KeyValue
+ * schemas, are assigned by partition to keep the order of their partition. Each lane queues up to
+ * <code>lane-queue-size</code> records (default 1000) before the function blocks. The input record
+ * is acknowledged once its output was sent, so the function must then be deployed with <code>
+ * autoAck</code> disabled, see below.
+ *
+ * <p>When the optional <code>batch-size</code> parameter is greater than 1, the records are
+ * processed in batches of up to that many records, or of the records received within <code>
+ * batch-max-delay-ms</code> milliseconds (default 10) of the first one, so that the steps resolve
+ * their state once for a run of records of the same schemas. The input records are acknowledged
+ * once their output was sent, so the function must then be deployed with <code>autoAck</code>
+ * disabled, see below. If a batch fails, all its records are failed. Batches can't be combined with
+ * lanes.
+ *
+ * <p>The function can't tell how it was deployed, so <code>send-async</code>, <code>lanes</code>
+ * and <code>batch-size</code> also require the boolean <code>auto-ack</code> parameter to be set to
+ * false, to confirm that <code>autoAck</code> is disabled. Otherwise the runtime would acknowledge
+ * the input records before their output is sent, and they would be lost if the send failed.
+ *
+ * <p>When the optional boolean <code>reuse-objects</code> parameter is set, the function reuses the
+ * same {@link TransformContext} for each record, and the steps reuse the records they build for
+ * each output schema, overwriting them in place. This is safe because the output of a record is
+ * serialized by <code>send</code> before the next record is processed. It can't be combined with
+ * lanes or batches, which hold several records at once.
+ *
+ * <p>The function records metrics through {@link Context#recordMetric}, at most once per second:
+ *
+ * <ul>
+ *   <li><code>step&lt;i&gt;.&lt;type&gt;.modified</code> and <code>.passed-through</code>: the
+ *       records whose key or value was replaced by the step, or not.
+ *   <li><code>step&lt;i&gt;.&lt;type&gt;.sampled-invocations</code> and <code>.sampled-nanos
+ *       </code>: the records of the step whose duration was measured, one in 16 or every batch, and
+ *       the sum of their durations. The duration of the other records is not measured.
+ *   <li><code>send.messages</code>, <code>send.passed-through</code>, <code>send.serializations
+ *       </code> and <code>send.serialization-nanos</code>: the messages sent and the time spent
+ *       serializing their key and value.
+ *   <li><code>serializer.buffers</code> and <code>.retained-bytes</code>: the number and capacity
+ *       of the buffers that the threads hold to serialize records.
+ *   <li><code>serializer.grows</code>, <code>.discards</code> and <code>.high-water-mark-bytes
+ *       </code>: the buffers grown, dropped after growing above 1 MB, and the size of the largest
+ *       record serialized.
+ *   <li><code>latency.processing-nanos</code>: the time spent processing and sending each record in
+ *       the function, excluding the time waiting in a lane or batch.
+ *   <li><code>latency.end-to-end-millis</code>: the time from the publication of the input message,
+ *       or its event time when it has no message, to the completion of the send of its output.
+ *   <li><code>cache.&lt;name&gt;.hits</code>, <code>.misses</code>, <code>.evictions</code>, <code>
+ *       .size</code> and <code>.weight</code>: the schema and plan caches, and the caches of
+ *       writers and readers of the serializer.
+ * </ul>
+ *
+ * <p>The steps are numbered in the order they are configured. Consecutive <code>drop-fields</code>
+ * and <code>merge-key-value</code> steps run fused together: each of them is credited with the
+ * records of the fused run and an even share of its duration, and the caches of the fused run are
+ * named after its first step.
+ *
+ * <p>The <code>serializer</code> metrics and the metrics of the caches of output schemas and of the
+ * serializer are shared by all the instances of the function in the JVM, so each interval they are
+ * recorded by only one of them.
+ *
+ * <p>Counters are recorded as their increase since the previous recording, so the sum of their
+ * summary is their total. Latencies are recorded as the <code>.count</code>, <code>.p50</code>,
+ * <code>.p99</code>, <code>.p999</code> and <code>.max</code> of the records of each interval.
+ *
+ * <p>The function also emits JDK Flight Recorder events for the execution of each step, the misses
+ * of the schema and plan caches and the serialization of the output records: <code>
+ * com.datastax.pulsar.functions.transforms.Step</code>, <code>.CacheMiss</code> and <code>
+ * .Serialization</code>. They are disabled by default and must be enabled in the settings of the
+ * recording.
+ *
  * @see <a href="https://github.com/apache/pulsar/issues/15902">PIP-173 : Create a built-in Function
  *     implementing the most common basic transformations</a>
  */
 @Slf4j
 public class TransformFunction implements Function<GenericObject, Void>, TransformStep {
 
+  private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 30_000;
+  private static final int DEFAULT_LANE_QUEUE_SIZE = 1000;
+  private static final int DEFAULT_BATCH_MAX_DELAY_MS = 10;
+  private static final long METRICS_INTERVAL_MILLIS = 1000;
+  // One record in SAMPLE_MASK + 1 has the duration of its steps measured
+  private static final int SAMPLE_MASK = 15;
+  // Publishes the metrics of the state shared by all the instances of the function in the JVM
+  private static final MetricsPublisher sharedMetricsPublisher = newSharedMetricsPublisher();
+
   private final List<TransformStep> steps = new ArrayList<>();
+  // The configured steps run by steps[i] are firstConfiguredSteps[i] to firstConfiguredSteps[i + 1]
+  private int[] firstConfiguredSteps;
+  // The type of the events of steps[i], which lists the types of the configured steps it runs
+  private final List<String> eventTypes = new ArrayList<>();
+  // The metrics and types of the configured steps
+  private final List<StepMetrics> stepMetrics = new ArrayList<>();
+  private final List<String> stepTypes = new ArrayList<>();
+  private final SendMetrics sendMetrics = new SendMetrics();
+  private final LatencyHistogram processingLatency = new LatencyHistogram();
+  private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+  private final MetricsPublisher metricsPublisher = new MetricsPublisher(METRICS_INTERVAL_MILLIS);
   private final Gson gson = new Gson();
+  private Context context;
+  private SendWindow sendWindow;
+  private KeyOrderedExecutor executor;
+  private MicroBatcher<TransformContext> batcher;
+  private boolean reuseObjects;
+  // The context reset for each record when reuseObjects is set
+  private TransformContext reusableContext;
 
   @Override
   public void initialize(Context context) {
+    this.context = context;
     Object config =
         context
             .getUserConfigValue("steps")
@@ -98,29 +214,173 @@ public class TransformFunction implements Function<GenericObject, Void>, Transfo
     } catch (Exception e) {
       throw new IllegalArgumentException("could not parse configuration", e);
     }
+    List<TransformStep> configuredSteps = new ArrayList<>();
     for (Map<String, Object> step : stepsConfig) {
       String type = getRequiredStringConfig(step, "type");
       switch (type) {
         case "drop-fields":
-          steps.add(newRemoveFieldFunction(step));
+          configuredSteps.add(newRemoveFieldFunction(step));
           break;
         case "cast":
-          steps.add(newCastFunction(step));
+          configuredSteps.add(newCastFunction(step));
           break;
         case "merge-key-value":
-          steps.add(new MergeKeyValueStep());
+          configuredSteps.add(new MergeKeyValueStep());
           break;
         case "unwrap-key-value":
-          steps.add(newUnwrapKeyValueFunction(step));
+          configuredSteps.add(newUnwrapKeyValueFunction(step));
           break;
         default:
           throw new IllegalArgumentException("invalid step type: " + type);
       }
     }
+    boolean specialize = getBooleanConfig(context, "specialize").orElse(false);
+    steps.addAll(fuseStructuralSteps(configuredSteps, specialize));
+    firstConfiguredSteps = new int[steps.size() + 1];
+    for (int i = 0; i < steps.size(); i++) {
+      List<TransformStep> runSteps = configuredStepsOf(steps.get(i));
+      firstConfiguredSteps[i + 1] = firstConfiguredSteps[i] + runSteps.size();
+      List<String> runTypes = new ArrayList<>();
+      for (TransformStep step : runSteps) {
+        runTypes.add(typeOf(step));
+      }
+      stepTypes.addAll(runTypes);
+      eventTypes.add(String.join("+", runTypes));
+    }
+    boolean sendAsync = getBooleanConfig(context, "send-async").orElse(false);
+    int lanes = getIntegerConfig(context, "lanes").orElse(1);
+    int batchSize = getIntegerConfig(context, "batch-size").orElse(1);
+    if (lanes > 1 && batchSize > 1) {
+      throw new IllegalArgumentException("'batch-size' can't be combined with 'lanes'");
+    }
+    reuseObjects = getBooleanConfig(context, "reuse-objects").orElse(false);
+    if (reuseObjects && (lanes > 1 || batchSize > 1)) {
+      throw new IllegalArgumentException(
+          "'reuse-objects' can't be combined with 'lanes' or 'batch-size'");
+    }
+    if ((sendAsync || lanes > 1 || batchSize > 1)
+        && getBooleanConfig(context, "auto-ack").orElse(true)) {
+      throw new IllegalArgumentException(
+          "'send-async', 'lanes' and 'batch-size' require the function to be deployed with "
+              + "autoAck disabled and 'auto-ack' set to false");
+    }
+    if (sendAsync) {
+      sendWindow =
+          new SendWindow(
+              getIntegerConfig(context, "max-in-flight").orElse(DEFAULT_MAX_IN_FLIGHT),
+              getBooleanConfig(context, "adaptive-window").orElse(false));
+    }
+    if (lanes > 1) {
+      executor =
+          new KeyOrderedExecutor(
+              lanes, getIntegerConfig(context, "lane-queue-size").orElse(DEFAULT_LANE_QUEUE_SIZE));
+    }
+    if (batchSize > 1) {
+      batcher =
+          new MicroBatcher<>(
+              batchSize,
+              getIntegerConfig(context, "batch-max-delay-ms").orElse(DEFAULT_BATCH_MAX_DELAY_MS),
+              this::processAndSendBatch);
+    }
+    registerMetrics();
+  }
+
+  private void registerMetrics() {
+    for (int i = 0; i < stepTypes.size(); i++) {
+      StepMetrics metrics = new StepMetrics();
+      stepMetrics.add(metrics);
+      String prefix = "step" + i + "." + stepTypes.get(i) + ".";
+      metricsPublisher.addCounter(prefix + "modified", metrics::getModified);
+      metricsPublisher.addCounter(prefix + "passed-through", metrics::getPassedThrough);
+      metricsPublisher.addCounter(prefix + "sampled-invocations", metrics::getSampledInvocations);
+      metricsPublisher.addCounter(prefix + "sampled-nanos", metrics::getSampledNanos);
+    }
+    metricsPublisher.addCounter("send.messages", sendMetrics::getMessages);
+    metricsPublisher.addCounter("send.passed-through", sendMetrics::getPassedThrough);
+    metricsPublisher.addCounter("send.serializations", sendMetrics::getSerializations);
+    metricsPublisher.addCounter("send.serialization-nanos", sendMetrics::getSerializationNanos);
+    metricsPublisher.addHistogram("latency.processing-nanos", processingLatency);
+    metricsPublisher.addHistogram("latency.end-to-end-millis", endToEndLatency);
+    for (Map.Entry<String, CacheMetrics> entry : getStepCacheMetrics().entrySet()) {
+      entry.getValue().setName(entry.getKey());
+      addCacheMetrics(metricsPublisher, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private static MetricsPublisher newSharedMetricsPublisher() {
+    MetricsPublisher publisher = new MetricsPublisher(METRICS_INTERVAL_MILLIS);
+    BufferMetrics bufferMetrics = GenericRecordSerializer.getBufferMetrics();
+    publisher.addGauge("serializer.buffers", bufferMetrics::getBuffers);
+    publisher.addGauge("serializer.retained-bytes", bufferMetrics::getRetainedBytes);
+    publisher.addGauge("serializer.high-water-mark-bytes", bufferMetrics::getHighWaterMark);
+    publisher.addCounter("serializer.grows", bufferMetrics::getGrows);
+    publisher.addCounter("serializer.discards", bufferMetrics::getDiscards);
+    for (Map.Entry<String, CacheMetrics> entry : getSharedCacheMetrics().entrySet()) {
+      addCacheMetrics(publisher, entry.getKey(), entry.getValue());
+    }
+    return publisher;
+  }
+
+  private static void addCacheMetrics(
+      MetricsPublisher publisher, String name, CacheMetrics metrics) {
+    String prefix = "cache." + name + ".";
+    publisher.addCounter(prefix + "hits", metrics::getHits);
+    publisher.addCounter(prefix + "misses", metrics::getMisses);
+    publisher.addCounter(prefix + "evictions", metrics::getEvictions);
+    publisher.addGauge(prefix + "size", metrics::getSize);
+    publisher.addGauge(prefix + "weight", metrics::getWeight);
+  }
+
+  private static List<TransformStep> configuredStepsOf(TransformStep step) {
+    return step instanceof FusedStructuralStep
+        ? ((FusedStructuralStep) step).getSteps()
+        : Collections.singletonList(step);
+  }
+
+  private static String typeOf(TransformStep step) {
+    if (step instanceof DropFieldStep) {
+      return "drop-fields";
+    } else if (step instanceof CastStep) {
+      return "cast";
+    } else if (step instanceof MergeKeyValueStep) {
+      return "merge-key-value";
+    } else if (step instanceof UnwrapKeyValueStep) {
+      return "unwrap-key-value";
+    }
+    return step.getClass().getSimpleName();
+  }
+
+  @Override
+  public void close() throws Exception {
+    if (batcher != null) {
+      batcher.close();
+    }
+    if (executor != null && !executor.shutdown(CLOSE_TIMEOUT_MILLIS)) {
+      log.warn("Closing with records still queued after {} ms", CLOSE_TIMEOUT_MILLIS);
+    }
+    if (sendWindow != null && !sendWindow.awaitEmpty(CLOSE_TIMEOUT_MILLIS)) {
+      log.warn(
+          "Closing with {} messages still in flight after {} ms",
+          sendWindow.getInFlight(),
+          CLOSE_TIMEOUT_MILLIS);
+    }
+    if (context != null) {
+      metricsPublisher.publish(context);
+    }
+  }
+
+  /** Returns the metrics of the steps, in the order they are configured. */
+  public List<StepMetrics> getStepMetrics() {
+    return Collections.unmodifiableList(stepMetrics);
+  }
+
+  public SendMetrics getSendMetrics() {
+    return sendMetrics;
   }
 
   @Override
   public Void process(GenericObject input, Context context) throws Exception {
+    long start = System.nanoTime();
     Object nativeObject = input.getNativeObject();
     if (log.isDebugEnabled()) {
       Record<?> currentRecord = context.getCurrentRecord();
@@ -132,17 +392,209 @@ public class TransformFunction implements Function<GenericObject, Void>, Transfo
           currentRecord);
     }
 
-    TransformContext transformContext = new TransformContext(context, nativeObject);
-    process(transformContext);
-    transformContext.send();
+    TransformContext transformContext;
+    if (reuseObjects && reusableContext != null && reusableContext.getContext() == context) {
+      transformContext = reusableContext;
+      transformContext.reset(nativeObject);
+    } else {
+      transformContext = new TransformContext(context, nativeObject);
+      transformContext.setSendWindow(sendWindow);
+      transformContext.setSendMetrics(sendMetrics);
+      transformContext.setEndToEndLatency(endToEndLatency);
+      if (reuseObjects) {
+        transformContext.reuseRecords();
+        reusableContext = transformContext;
+      }
+    }
+    if (batcher != null) {
+      batcher.add(transformContext);
+    } else if (executor == null) {
+      process(transformContext);
+      transformContext.send();
+      processingLatency.record(System.nanoTime() - start);
+    } else {
+      // The current record must be read on the calling thread
+      Record<?> currentRecord = context.getCurrentRecord();
+      String laneKey =
+          currentRecord.getKey().orElseGet(() -> currentRecord.getPartitionId().orElse(null));
+      executor.execute(laneKey, () -> processInLane(transformContext, currentRecord));
+    }
+    metricsPublisher.maybePublish(context);
+    sharedMetricsPublisher.maybePublish(context);
     return null;
   }
 
+  private void processInLane(TransformContext transformContext, Record<?> currentRecord) {
+    long start = System.nanoTime();
+    try {
+      process(transformContext);
+      transformContext.send();
+      processingLatency.record(System.nanoTime() - start);
+      if (sendWindow == null) {
+        currentRecord.ack();
+      }
+    } catch (Exception e) {
+      log.error("Failed to process record {}", currentRecord, e);
+      currentRecord.fail();
+    }
+  }
+
+  private void processAndSendBatch(List<TransformContext> batch) {
+    long start = System.nanoTime();
+    try {
+      processBatch(batch);
+    } catch (Exception e) {
+      log.error("Failed to process a batch of {} records", batch.size(), e);
+      for (TransformContext transformContext : batch) {
+        transformContext.getInputRecord().fail();
+      }
+      return;
+    }
+    for (TransformContext transformContext : batch) {
+      Record<?> inputRecord = transformContext.getInputRecord();
+      try {
+        transformContext.send();
+        if (sendWindow == null) {
+          inputRecord.ack();
+        }
+      } catch (Exception e) {
+        log.error("Failed to send record {}", inputRecord, e);
+        inputRecord.fail();
+      }
+    }
+    // Each record is accounted for its share of the batch
+    long share = (System.nanoTime() - start) / batch.size();
+    for (int i = 0; i < batch.size(); i++) {
+      processingLatency.record(share);
+    }
+  }
+
   @Override
   public void process(TransformContext transformContext) throws Exception {
+    boolean sampled = (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    for (int i = 0; i < steps.size(); i++) {
+      int modifications = transformContext.getModifications();
+      Object event = JfrEvents.beginStep();
+      long start = sampled ? System.nanoTime() : 0;
+      steps.get(i).process(transformContext);
+      long nanos = sampled ? System.nanoTime() - start : 0;
+      boolean modified = transformContext.getModifications() != modifications;
+      int first = firstConfiguredSteps[i];
+      int count = firstConfiguredSteps[i + 1] - first;
+      for (int j = first; j < first + count; j++) {
+        StepMetrics metrics = stepMetrics.get(j);
+        if (sampled) {
+          metrics.recordSample(1, nanos / count);
+        }
+        metrics.record(modified);
+      }
+      JfrEvents.commitStep(event, eventTypes.get(i), first, 1, modified);
+    }
+  }
+
+  @Override
+  public void processBatch(List<TransformContext> batch) throws Exception {
+    int[] modifications = new int[batch.size()];
+    for (int i = 0; i < steps.size(); i++) {
+      for (int j = 0; j < modifications.length; j++) {
+        modifications[j] = batch.get(j).getModifications();
+      }
+      Object event = JfrEvents.beginStep();
+      // Timing a whole batch is cheap enough to do for every batch
+      long start = System.nanoTime();
+      steps.get(i).processBatch(batch);
+      long nanos = System.nanoTime() - start;
+      int first = firstConfiguredSteps[i];
+      int count = firstConfiguredSteps[i + 1] - first;
+      boolean modified = false;
+      for (int j = 0; j < modifications.length; j++) {
+        boolean recordModified = batch.get(j).getModifications() != modifications[j];
+        for (int k = first; k < first + count; k++) {
+          stepMetrics.get(k).record(recordModified);
+        }
+        modified |= recordModified;
+      }
+      for (int k = first; k < first + count; k++) {
+        stepMetrics.get(k).recordSample(batch.size(), nanos / count);
+      }
+      JfrEvents.commitStep(event, eventTypes.get(i), first, batch.size(), modified);
+    }
+  }
+
+  /**
+   * Returns the metrics of the caches of the steps, prefixed by the index of the configured step,
+   * and of the caches of output schemas and of the serializer.
+   */
+  @Override
+  public Map<String, CacheMetrics> getCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = getStepCacheMetrics();
+    cacheMetrics.putAll(getSharedCacheMetrics());
+    return cacheMetrics;
+  }
+
+  private Map<String, CacheMetrics> getStepCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    for (int i = 0; i < steps.size(); i++) {
+      TransformStep step = steps.get(i);
+      if (step instanceof FusedStructuralStep) {
+        putCacheMetrics(cacheMetrics, firstConfiguredSteps[i], step);
+      }
+      List<TransformStep> runSteps = configuredStepsOf(step);
+      for (int j = 0; j < runSteps.size(); j++) {
+        putCacheMetrics(cacheMetrics, firstConfiguredSteps[i] + j, runSteps.get(j));
+      }
+    }
+    return cacheMetrics;
+  }
+
+  /** Returns the metrics of the caches shared by all the instances of the function in the JVM. */
+  private static Map<String, CacheMetrics> getSharedCacheMetrics() {
+    Map<String, CacheMetrics> cacheMetrics = new LinkedHashMap<>();
+    CacheMetrics outputSchemaCacheMetrics = OutputSchemas.getCacheMetrics();
+    cacheMetrics.put(outputSchemaCacheMetrics.getName(), outputSchemaCacheMetrics);
+    cacheMetrics.putAll(GenericRecordSerializer.getCacheMetrics());
+    return cacheMetrics;
+  }
+
+  private static void putCacheMetrics(
+      Map<String, CacheMetrics> cacheMetrics, int configuredStep, TransformStep step) {
+    for (Map.Entry<String, CacheMetrics> entry : step.getCacheMetrics().entrySet()) {
+      cacheMetrics.put("step" + configuredStep + "." + entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Replaces the runs of consecutive structural steps by a {@link FusedStructuralStep}, so that
+   * each run builds the output records once and decodes only the input fields that its output
+   * needs. A single <code>merge-key-value</code> step is also replaced for the latter, and when
+   * <code>specialize</code> is set, any run of a single step is replaced so that it uses
+   * specialized copiers.
+   */
+  private static List<TransformStep> fuseStructuralSteps(
+      List<TransformStep> steps, boolean specialize) {
+    List<TransformStep> fusedSteps = new ArrayList<>();
+    List<TransformStep> run = new ArrayList<>();
     for (TransformStep step : steps) {
-      step.process(transformContext);
+      if (FusedStructuralStep.isFusible(step)) {
+        run.add(step);
+      } else {
+        addRun(fusedSteps, run, specialize);
+        fusedSteps.add(step);
+      }
+    }
+    addRun(fusedSteps, run, specialize);
+    return fusedSteps;
+  }
+
+  private static void addRun(
+      List<TransformStep> steps, List<TransformStep> run, boolean specialize) {
+    if (run.size() > 1
+        || (!run.isEmpty() && (specialize || run.get(0) instanceof MergeKeyValueStep))) {
+      steps.add(new FusedStructuralStep(run, specialize));
+    } else {
+      steps.addAll(run);
     }
+    run.clear();
   }
 
   public static DropFieldStep newRemoveFieldFunction(Map<String, Object> step) {
@@ -202,7 +654,27 @@ public class TransformFunction implements Function<GenericObject, Void>, Transfo
   }
 
   private static Optional<Boolean> getBooleanConfig(Map<String, Object> config, String fieldName) {
-    Object fieldObject = config.get(fieldName);
+    return toBoolean(fieldName, config.get(fieldName));
+  }
+
+  private static Optional<Boolean> getBooleanConfig(Context context, String fieldName) {
+    return toBoolean(fieldName, context.getUserConfigValue(fieldName).orElse(null));
+  }
+
+  private static Optional<Integer> getIntegerConfig(Context context, String fieldName) {
+    Object fieldObject = context.getUserConfigValue(fieldName).orElse(null);
+    if (fieldObject == null) {
+      return Optional.empty();
+    }
+    // Json numbers are parsed as doubles
+    if (fieldObject instanceof Number
+        && ((Number) fieldObject).doubleValue() == ((Number) fieldObject).intValue()) {
+      return Optional.of(((Number) fieldObject).intValue());
+    }
+    throw new IllegalArgumentException("field '" + fieldName + "' must be an integer");
+  }
+
+  private static Optional<Boolean> toBoolean(String fieldName, Object fieldObject) {
     if (fieldObject == null) {
       return Optional.empty();
     }
@@ -15,6 +15,25 @@
  */
 package com.datastax.pulsar.functions.transforms;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 public interface TransformStep {
   void process(TransformContext transformContext) throws Exception;
+
+  /**
+   * Processes a batch of records in order. Steps can override it to resolve their state once for a
+   * run of records of the same schemas.
+   */
+  default void processBatch(List<TransformContext> batch) throws Exception {
+    for (TransformContext transformContext : batch) {
+      process(transformContext);
+    }
+  }
+
+  /** Returns the metrics of the caches of the step, by cache name. */
+  default Map<String, CacheMetrics> getCacheMetrics() {
+    return Collections.emptyMap();
+  }
 }
@@ -27,10 +27,15 @@ public class UnwrapKeyValueStep implements TransformStep {
   public void process(TransformContext transformContext) throws Exception {
     if (transformContext.getKeySchema() != null) {
       if (unwrapKey) {
+        byte[] keyAvroBytes = transformContext.getKeyAvroBytes();
         transformContext.setValueSchema(transformContext.getKeySchema());
-        transformContext.setValueObject(transformContext.getKeyObject());
+        if (keyAvroBytes != null) {
+          transformContext.setValueAvroBytes(transformContext.getKeyAvroSchema(), keyAvroBytes);
+        } else {
+          transformContext.setValueObject(transformContext.getKeyObject());
+        }
       }
-      // TODO: can we avoid making the conversion to NATIVE_AVRO ?
+      // The value is written from its encoding when it is known, without decoding it again
       transformContext.setValueModified(true);
       transformContext.setKeySchema(null);
       transformContext.setKeyObject(null);
@@ -0,0 +1,178 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Supplier;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.functions.api.Record;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the bytes allocated per record by the steps and by {@link TransformContext#send()} in
+ * steady state, against a budget per record. A change that exceeds a budget is an allocation
+ * regression on the hot path: the budget should only be raised if the extra allocation is intended.
+ */
+public class AllocationTest {
+
+  // Enough for the JIT to compile the measured code and eliminate the allocations it can
+  private static final int WARMUP_RECORDS = 20_000;
+  private static final int MEASURED_RECORDS = 1_000;
+
+  @DataProvider(name = "steps")
+  public static Object[][] steps() {
+    return new Object[][] {
+      {"drop-fields", false, dropFieldStep(), 512},
+      {"drop-fields", true, dropFieldStep(), 1024},
+      {"merge-key-value", false, new MergeKeyValueStep(), 512},
+      {"merge-key-value", true, new MergeKeyValueStep(), 1024},
+      {"fused", false, fusedStep(), 512},
+      {"fused", true, fusedStep(), 1024},
+      {"unwrap-key-value", false, new UnwrapKeyValueStep(false), 256},
+      {"cast", false, new CastStep(SchemaType.STRING, SchemaType.STRING), 4096},
+    };
+  }
+
+  @Test(dataProvider = "steps")
+  void testStep(String name, boolean withMessage, TransformStep step, int budget) throws Exception {
+    Utils.TestContext context = newContext(withMessage);
+
+    long allocated =
+        allocatedBytesPerRecord(() -> new TransformContext(context, nativeValue(context)), step);
+
+    assertBudget(name + (withMessage ? " (avro bytes)" : ""), allocated, budget);
+  }
+
+  @Test(dataProvider = "withMessage")
+  void testSend(boolean withMessage) throws Exception {
+    Utils.TestContext context = newContext(withMessage);
+    TransformStep step = dropFieldStep();
+
+    long allocated =
+        allocatedBytesPerRecord(
+            () -> {
+              TransformContext transformContext =
+                  new TransformContext(context, nativeValue(context));
+              try {
+                step.process(transformContext);
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+              return transformContext;
+            },
+            TransformContext::send);
+
+    assertBudget("send" + (withMessage ? " (avro bytes)" : ""), allocated, 2048);
+  }
+
+  @Test
+  void testReusedContext() throws Exception {
+    Utils.TestContext context = newContext(false);
+    Object value = nativeValue(context);
+    TransformStep step = dropFieldStep();
+    TransformContext reused = new TransformContext(context, value);
+    reused.reuseRecords();
+
+    long allocated =
+        allocatedBytesPerRecord(
+            () -> reused,
+            transformContext -> {
+              transformContext.reset(value);
+              step.process(transformContext);
+            });
+
+    assertBudget("drop-fields (reused context)", allocated, 256);
+  }
+
+  @DataProvider(name = "withMessage")
+  public static Object[][] withMessage() {
+    return new Object[][] {{false}, {true}};
+  }
+
+  private static DropFieldStep dropFieldStep() {
+    return new DropFieldStep(
+        Collections.singletonList("keyField1"), Collections.singletonList("valueField1"));
+  }
+
+  private static FusedStructuralStep fusedStep() {
+    return new FusedStructuralStep(Arrays.asList(dropFieldStep(), new MergeKeyValueStep()));
+  }
+
+  /** The records share their schemas so that the steps hit their caches as in steady state. */
+  private static Utils.TestContext newContext(boolean withMessage) {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(withMessage);
+    return new Utils.TestContext(record, Collections.emptyMap());
+  }
+
+  private static Object nativeValue(Utils.TestContext context) {
+    return ((GenericObject) context.getCurrentRecord().getValue()).getNativeObject();
+  }
+
+  /**
+   * Returns the bytes allocated per record by the current thread in <code>step</code> once warmed
+   * up. The contexts are created before the measurement so that only the step is accounted for.
+   */
+  private static long allocatedBytesPerRecord(
+      Supplier<TransformContext> newTransformContext, TransformStep step) throws Exception {
+    com.sun.management.ThreadMXBean threadMXBean = threadMXBean();
+    measure(threadMXBean, newTransformContext, step, WARMUP_RECORDS);
+    return measure(threadMXBean, newTransformContext, step, MEASURED_RECORDS) / MEASURED_RECORDS;
+  }
+
+  private static long measure(
+      com.sun.management.ThreadMXBean threadMXBean,
+      Supplier<TransformContext> newTransformContext,
+      TransformStep step,
+      int records)
+      throws Exception {
+    TransformContext[] transformContexts = new TransformContext[records];
+    for (int i = 0; i < records; i++) {
+      transformContexts[i] = newTransformContext.get();
+    }
+    long threadId = Thread.currentThread().getId();
+    long start = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (TransformContext transformContext : transformContexts) {
+      step.process(transformContext);
+    }
+    return threadMXBean.getThreadAllocatedBytes(threadId) - start;
+  }
+
+  private static com.sun.management.ThreadMXBean threadMXBean() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      throw new SkipException("the JVM does not measure the allocations of threads");
+    }
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+      throw new SkipException("the JVM does not measure the allocations of threads");
+    }
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    return threadMXBean;
+  }
+
+  private static void assertBudget(String name, long allocated, int budget) {
+    assertTrue(
+        allocated <= budget,
+        name + " allocated " + allocated + " bytes per record, over its budget of " + budget);
+  }
+}
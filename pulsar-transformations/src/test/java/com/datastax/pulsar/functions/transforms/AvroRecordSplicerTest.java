@@ -0,0 +1,161 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.testng.annotations.Test;
+
+public class AvroRecordSplicerTest {
+
+  private static final Schema SCHEMA =
+      SchemaBuilder.record("record")
+          .fields()
+          .requiredBoolean("booleanField")
+          .requiredInt("intField")
+          .requiredLong("longField")
+          .requiredFloat("floatField")
+          .requiredDouble("doubleField")
+          .requiredString("stringField")
+          .requiredBytes("bytesField")
+          .name("fixedField")
+          .type()
+          .fixed("fixed")
+          .size(4)
+          .noDefault()
+          .name("enumField")
+          .type()
+          .enumeration("enum")
+          .symbols("A", "B", "C")
+          .noDefault()
+          .name("arrayField")
+          .type()
+          .array()
+          .items()
+          .stringType()
+          .noDefault()
+          .name("mapField")
+          .type()
+          .map()
+          .values()
+          .longType()
+          .noDefault()
+          .optionalString("unionField")
+          .name("recordField")
+          .type()
+          .record("nested")
+          .fields()
+          .requiredString("nestedField")
+          .endRecord()
+          .noDefault()
+          .endRecord();
+
+  private static final Schema OTHER_SCHEMA =
+      SchemaBuilder.record("other").fields().requiredString("otherField").endRecord();
+
+  @Test
+  void testProjection() throws Exception {
+    GenericRecord record = createRecord();
+    int[] positions = {0, 2, 3, 5, 9, 11, 12};
+
+    AvroRecordSplicer splicer =
+        new AvroRecordSplicer(SCHEMA, null, new int[positions.length], positions);
+    byte[] spliced = splicer.splice(GenericRecordSerializer.serialize(record), null);
+
+    assertEquals(spliced, GenericRecordSerializer.serialize(project(record, positions)));
+  }
+
+  @Test
+  void testConcatenation() throws Exception {
+    GenericRecord record = createRecord();
+    GenericRecord other = new GenericData.Record(OTHER_SCHEMA);
+    other.put("otherField", "other");
+    byte[] recordBytes = GenericRecordSerializer.serialize(record);
+    byte[] otherBytes = GenericRecordSerializer.serialize(other);
+
+    int fieldCount = SCHEMA.getFields().size();
+    int[] inputs = new int[fieldCount + 1];
+    int[] positions = new int[fieldCount + 1];
+    inputs[0] = AvroRecordSplicer.SECOND;
+    for (int i = 0; i < fieldCount; i++) {
+      inputs[i + 1] = AvroRecordSplicer.FIRST;
+      positions[i + 1] = i;
+    }
+    AvroRecordSplicer splicer = new AvroRecordSplicer(SCHEMA, OTHER_SCHEMA, inputs, positions);
+
+    byte[] expected = new byte[otherBytes.length + recordBytes.length];
+    System.arraycopy(otherBytes, 0, expected, 0, otherBytes.length);
+    System.arraycopy(recordBytes, 0, expected, otherBytes.length, recordBytes.length);
+    assertEquals(splicer.splice(recordBytes, otherBytes), expected);
+  }
+
+  @Test
+  void testInvalidPayload() throws Exception {
+    byte[] bytes = GenericRecordSerializer.serialize(createRecord());
+    AvroRecordSplicer splicer =
+        new AvroRecordSplicer(SCHEMA, null, new int[] {0, 0}, new int[] {0, 5});
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> splicer.splice(Arrays.copyOf(bytes, bytes.length - 1), null));
+  }
+
+  private static GenericRecord createRecord() {
+    GenericRecord nested = new GenericData.Record(SCHEMA.getField("recordField").schema());
+    nested.put("nestedField", "nested");
+    GenericRecord record = new GenericData.Record(SCHEMA);
+    record.put("booleanField", true);
+    record.put("intField", -5);
+    record.put("longField", 1L << 40);
+    record.put("floatField", 1.5f);
+    record.put("doubleField", 2.5d);
+    record.put("stringField", "string");
+    record.put("bytesField", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    record.put(
+        "fixedField",
+        new GenericData.Fixed(SCHEMA.getField("fixedField").schema(), new byte[] {1, 2, 3, 4}));
+    record.put("enumField", new GenericData.EnumSymbol(SCHEMA.getField("enumField").schema(), "B"));
+    record.put("arrayField", Arrays.asList("a", "b", "c"));
+    record.put("mapField", Collections.singletonMap("key", 42L));
+    record.put("unionField", "union");
+    record.put("recordField", nested);
+    return record;
+  }
+
+  private static GenericRecord project(GenericRecord record, int[] positions) {
+    List<Schema.Field> fields = new ArrayList<>();
+    for (int position : positions) {
+      Schema.Field field = SCHEMA.getFields().get(position);
+      fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultVal()));
+    }
+    Schema schema = Schema.createRecord("projected", null, null, false, fields);
+    GenericRecord projected = new GenericData.Record(schema);
+    for (int i = 0; i < positions.length; i++) {
+      projected.put(i, record.get(positions[i]));
+    }
+    return projected;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.testng.annotations.Test;
+
+public class AvroSchemaCacheTest {
+
+  @Test
+  void testComputeIfAbsent() {
+    Schema schema = SchemaBuilder.record("record").fields().requiredString("field").endRecord();
+    Schema equalSchema = new Schema.Parser().parse(schema.toString());
+    Schema otherSchema = SchemaBuilder.record("record").fields().requiredInt("field").endRecord();
+    CacheMetrics metrics = new CacheMetrics();
+    CacheMetrics fingerprintMetrics = new CacheMetrics();
+    AvroSchemaCache<Object> cache =
+        new AvroSchemaCache<>(10, 10, value -> 1, metrics, fingerprintMetrics);
+    AtomicInteger computations = new AtomicInteger();
+
+    assertNull(cache.get(schema));
+    Object value = cache.computeIfAbsent(schema, s -> computations.incrementAndGet());
+    assertSame(cache.get(schema), value);
+    assertSame(cache.computeIfAbsent(schema, s -> computations.incrementAndGet()), value);
+
+    // An equal schema instance is found by fingerprint and then by identity
+    assertNull(cache.get(equalSchema));
+    assertSame(cache.computeIfAbsent(equalSchema, s -> computations.incrementAndGet()), value);
+    assertSame(cache.get(equalSchema), value);
+    assertEquals(computations.get(), 1);
+
+    assertEquals(cache.computeIfAbsent(otherSchema, s -> computations.incrementAndGet()), 2);
+    assertEquals(computations.get(), 2);
+    assertEquals(metrics.getSize(), 3);
+    assertEquals(metrics.getMisses(), 3);
+    assertEquals(fingerprintMetrics.getSize(), 2);
+    assertEquals(fingerprintMetrics.getMisses(), 2);
+    assertEquals(fingerprintMetrics.getHits(), 1);
+
+    cache.clear();
+    assertNull(cache.get(schema));
+    assertEquals(metrics.getSize(), 0);
+    assertEquals(metrics.getEvictions(), 3);
+    assertEquals(fingerprintMetrics.getSize(), 0);
+    assertEquals(cache.computeIfAbsent(equalSchema, s -> computations.incrementAndGet()), 3);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.testng.annotations.Test;
+
+public class BoundedCacheTest {
+
+  @Test
+  void testComputeIfAbsent() {
+    CacheMetrics metrics = new CacheMetrics();
+    BoundedCache<Object, Object> cache = new BoundedCache<>(true, 10, metrics);
+    Object key = new Object();
+
+    assertNull(cache.get(key));
+    Object value = cache.computeIfAbsent(key, k -> new Object());
+    assertSame(cache.computeIfAbsent(key, k -> new Object()), value);
+    assertSame(cache.get(key), value);
+
+    assertEquals(metrics.getSize(), 1);
+    assertEquals(metrics.getWeight(), 1);
+    assertEquals(metrics.getHits(), 2);
+    assertEquals(metrics.getMisses(), 1);
+    assertEquals(metrics.getEvictions(), 0);
+  }
+
+  @Test
+  void testIdentityKeys() {
+    BoundedCache<String, Object> identityCache = new BoundedCache<>(true, 10, new CacheMetrics());
+    BoundedCache<String, Object> cache = new BoundedCache<>(false, 10, new CacheMetrics());
+    String key = "key";
+    String equalKey = new String(key);
+    identityCache.computeIfAbsent(key, k -> new Object());
+    cache.computeIfAbsent(key, k -> new Object());
+
+    assertNull(identityCache.get(equalKey));
+    assertNotNull(cache.get(equalKey));
+  }
+
+  @Test
+  void testEvictUnusedFirst() {
+    CacheMetrics metrics = new CacheMetrics();
+    BoundedCache<String, String> cache = new BoundedCache<>(false, 2, metrics);
+    cache.computeIfAbsent("a", k -> k);
+    cache.computeIfAbsent("b", k -> k);
+    cache.get("a");
+
+    cache.computeIfAbsent("c", k -> k);
+    assertEquals(cache.size(), 2);
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(metrics.getSize(), 2);
+    assertEquals(metrics.getEvictions(), 1);
+  }
+
+  @Test
+  void testEvictByWeight() {
+    CacheMetrics metrics = new CacheMetrics();
+    BoundedCache<String, String> cache = new BoundedCache<>(false, 10, 4, String::length, metrics);
+    cache.computeIfAbsent("aa", k -> k);
+    cache.computeIfAbsent("bb", k -> k);
+    assertEquals(metrics.getWeight(), 4);
+
+    cache.computeIfAbsent("ccc", k -> k);
+    assertEquals(cache.size(), 1);
+    assertNotNull(cache.get("ccc"));
+    assertEquals(metrics.getWeight(), 3);
+    assertEquals(metrics.getEvictions(), 2);
+
+    // A value heavier than the maximum weight is still cached
+    cache.computeIfAbsent("dddddd", k -> k);
+    assertEquals(cache.size(), 1);
+    assertNotNull(cache.get("dddddd"));
+  }
+
+  @Test
+  void testOnEviction() {
+    List<String> evicted = new ArrayList<>();
+    BoundedCache<String, String> cache =
+        new BoundedCache<>(false, 2, new CacheMetrics(), evicted::add);
+    cache.computeIfAbsent("a", k -> k);
+    cache.computeIfAbsent("b", k -> k);
+    cache.computeIfAbsent("c", k -> k);
+    assertEquals(evicted, Collections.singletonList("a"));
+
+    // Values removed by clear() are only passed to its own callback
+    cache.clear(value -> {});
+    assertEquals(evicted, Collections.singletonList("a"));
+  }
+
+  @Test
+  void testInvalidBounds() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new BoundedCache<>(true, 0, new CacheMetrics()));
+  }
+}
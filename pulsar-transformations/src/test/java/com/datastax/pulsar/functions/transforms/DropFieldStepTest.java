@@ -20,18 +20,24 @@ import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertSame;
 import static org.testng.AssertJUnit.assertNull;
 
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.util.Utf8;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
 import org.apache.pulsar.client.api.schema.GenericObject;
 import org.apache.pulsar.client.api.schema.GenericRecord;
 import org.apache.pulsar.client.api.schema.GenericSchema;
 import org.apache.pulsar.client.api.schema.KeyValueSchema;
 import org.apache.pulsar.client.api.schema.RecordSchemaBuilder;
 import org.apache.pulsar.client.api.schema.SchemaBuilder;
+import org.apache.pulsar.client.impl.TypedMessageBuilderImpl;
 import org.apache.pulsar.client.impl.schema.AutoConsumeSchema;
 import org.apache.pulsar.common.schema.KeyValue;
 import org.apache.pulsar.common.schema.KeyValueEncodingType;
@@ -73,6 +79,33 @@ public class DropFieldStepTest {
     assertNull(read.getSchema().getField("lastName"));
   }
 
+  @Test
+  void testKeyValueAvroBatch() throws Exception {
+    DropFieldStep step =
+        new DropFieldStep(
+            Arrays.asList("keyField1", "keyField2"), Arrays.asList("valueField1", "valueField2"));
+    Record<GenericObject> record1 = Utils.createTestAvroKeyValueRecord(true);
+    Record<GenericObject> record2 = Utils.createTestAvroKeyValueRecord();
+    TransformContext transformContext1 =
+        new TransformContext(
+            new Utils.TestContext(record1, new HashMap<>()), record1.getValue().getNativeObject());
+    TransformContext transformContext2 =
+        new TransformContext(
+            new Utils.TestContext(record2, new HashMap<>()), record2.getValue().getNativeObject());
+    step.processBatch(Arrays.asList(transformContext1, transformContext2));
+
+    for (TransformContext transformContext : Arrays.asList(transformContext1, transformContext2)) {
+      org.apache.avro.generic.GenericRecord key =
+          (org.apache.avro.generic.GenericRecord) transformContext.getKeyObject();
+      assertEquals(key.get("keyField3").toString(), "key3");
+      assertNull(key.getSchema().getField("keyField1"));
+      org.apache.avro.generic.GenericRecord value =
+          (org.apache.avro.generic.GenericRecord) transformContext.getValueObject();
+      assertEquals(value.get("valueField3").toString(), "value3");
+      assertNull(value.getSchema().getField("valueField2"));
+    }
+  }
+
   @Test
   void testKeyValueAvro() throws Exception {
     DropFieldStep step =
@@ -97,6 +130,104 @@ public class DropFieldStepTest {
     assertEquals(messageSchema.getKeyValueEncodingType(), KeyValueEncodingType.SEPARATED);
   }
 
+  @Test
+  void testKeyValueAvroBytes() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, new HashMap<>());
+    TransformContext transformContext =
+        new TransformContext(context, record.getValue().getNativeObject());
+    DropFieldStep step =
+        new DropFieldStep(
+            Arrays.asList("keyField1", "keyField2"), Arrays.asList("valueField1", "valueField3"));
+    step.process(transformContext);
+
+    // The retained fields are copied from the encoded key and value of the input message
+    assertEquals(transformContext.getKeyAvroBytes(), new byte[] {8, 'k', 'e', 'y', '3'});
+    assertEquals(
+        transformContext.getValueAvroBytes(), new byte[] {12, 'v', 'a', 'l', 'u', 'e', '2'});
+
+    transformContext.send();
+    Utils.TestTypedMessageBuilder<?> message = context.getOutputMessage();
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertEquals(keyAvroRecord.toString(), "{\"keyField3\": \"key3\"}");
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(valueAvroRecord.toString(), "{\"valueField2\": \"value2\"}");
+  }
+
+  @Test
+  void testKeyValueAvroUntouchedKeyNotUnwrapped() throws Exception {
+    Record<GenericObject> inputRecord = Utils.createTestAvroKeyValueRecord();
+    KeyValue<?, ?> keyValue = (KeyValue<?, ?>) inputRecord.getValue().getNativeObject();
+    Object inputKey = keyValue.getKey();
+    GenericRecord key =
+        (GenericRecord)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {GenericRecord.class},
+                (proxy, method, args) -> {
+                  if (method.getName().equals("getNativeObject")) {
+                    throw new AssertionError("the key should not be unwrapped");
+                  }
+                  return method.invoke(inputKey, args);
+                });
+    Record<GenericObject> record =
+        new Utils.TestRecord<>(
+            inputRecord.getSchema(),
+            AutoConsumeSchema.wrapPrimitiveObject(
+                new KeyValue<>(key, keyValue.getValue()), SchemaType.KEY_VALUE, new byte[] {}),
+            null);
+
+    DropFieldStep step =
+        new DropFieldStep(new ArrayList<>(), Collections.singletonList("valueField1"));
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, step);
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    assertSame(messageValue.getKey(), key);
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        valueAvroRecord.toString(), "{\"valueField2\": \"value2\", \"valueField3\": \"value3\"}");
+  }
+
+  @Test
+  void testKeyValueAvroKeyPrimitiveValue() throws Exception {
+    RecordSchemaBuilder recordSchemaBuilder = SchemaBuilder.record("record");
+    recordSchemaBuilder.field("firstName").type(SchemaType.STRING);
+    recordSchemaBuilder.field("age").type(SchemaType.INT32);
+    GenericSchema<GenericRecord> keySchema =
+        Schema.generic(recordSchemaBuilder.build(SchemaType.AVRO));
+    GenericRecord keyRecord =
+        keySchema.newRecordBuilder().set("firstName", "Jane").set("age", 42).build();
+
+    Schema<KeyValue<GenericRecord, String>> keyValueSchema =
+        Schema.KeyValue(keySchema, Schema.STRING, KeyValueEncodingType.SEPARATED);
+    Record<GenericObject> record =
+        new Utils.TestRecord<>(
+            keyValueSchema,
+            AutoConsumeSchema.wrapPrimitiveObject(
+                new KeyValue<>(keyRecord, "value"), SchemaType.KEY_VALUE, new byte[] {}),
+            null);
+
+    DropFieldStep step =
+        new DropFieldStep(Collections.singletonList("firstName"), new ArrayList<>());
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, step);
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertEquals(keyAvroRecord.get("age"), 42);
+    assertNull(keyAvroRecord.getSchema().getField("firstName"));
+    assertSame(messageSchema.getValueSchema(), Schema.STRING);
+    assertEquals(messageValue.getValue(), "value");
+  }
+
   @Test
   void testAvroNotModified() throws Exception {
     RecordSchemaBuilder recordSchemaBuilder = SchemaBuilder.record("record");
@@ -123,6 +254,45 @@ public class DropFieldStepTest {
     assertSame(message.getValue(), record.getValue());
   }
 
+  @Test
+  void testKeyValueAvroNotModifiedPassThrough() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+
+    DropFieldStep step =
+        new DropFieldStep(
+            Collections.singletonList("otherKey"), Collections.singletonList("otherValue"));
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, step);
+
+    // The payload of the input message is forwarded without being encoded again
+    Message<GenericObject> inputMessage = record.getMessage().get();
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+    assertSame(messageSchema.getSchemaInfo(), record.getSchema().getSchemaInfo());
+    assertEquals(messageSchema.getKeyValueEncodingType(), KeyValueEncodingType.SEPARATED);
+    assertSame(messageValue.getKey(), inputMessage.getKeyBytes());
+    assertSame(messageValue.getValue(), inputMessage.getData());
+  }
+
+  @Test
+  void testKeyValueAvroNotModifiedPassThroughProducerMessage() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    ProducerMessageContext context = new ProducerMessageContext(record);
+
+    DropFieldStep step =
+        new DropFieldStep(
+            Collections.singletonList("otherKey"), Collections.singletonList("otherValue"));
+    TransformContext transformContext =
+        new TransformContext(context, record.getValue().getNativeObject());
+    step.process(transformContext);
+    transformContext.send();
+
+    // The producer builds the same message as the input one
+    Message<GenericObject> inputMessage = record.getMessage().get();
+    Message<?> message = context.outputMessage.getMessage();
+    assertEquals(message.getData(), inputMessage.getData());
+    assertEquals(message.getKeyBytes(), inputMessage.getKeyBytes());
+  }
+
   @Test
   void testKeyValueAvroNotModified() throws Exception {
     Record<GenericObject> record = Utils.createTestAvroKeyValueRecord();
@@ -215,4 +385,26 @@ public class DropFieldStepTest {
     assertSame(messageValue.getKey(), recordValue.getKey());
     assertSame(messageValue.getValue(), recordValue.getValue());
   }
+
+  /** A context whose output messages are built by the message builder of the Pulsar producer. */
+  private static class ProducerMessageContext extends Utils.TestContext {
+    private TypedMessageBuilderImpl<?> outputMessage;
+
+    private ProducerMessageContext(Record<?> currentRecord) {
+      super(currentRecord, new HashMap<>());
+    }
+
+    @Override
+    public <X> TypedMessageBuilder<X> newOutputMessage(String topicName, Schema<X> schema) {
+      TypedMessageBuilderImpl<X> message =
+          new TypedMessageBuilderImpl<X>(null, schema) {
+            @Override
+            public MessageId send() {
+              return null;
+            }
+          };
+      outputMessage = message;
+      return message;
+    }
+  }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.avro.generic.GenericData;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+import org.apache.pulsar.client.api.schema.KeyValueSchema;
+import org.apache.pulsar.client.api.schema.RecordSchemaBuilder;
+import org.apache.pulsar.client.api.schema.SchemaBuilder;
+import org.apache.pulsar.client.impl.schema.AutoConsumeSchema;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.functions.api.Record;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class FusedStructuralStepTest {
+
+  @DataProvider(name = "withMessage")
+  public static Object[][] withMessage() {
+    return new Object[][] {{false}, {true}};
+  }
+
+  @DataProvider(name = "specialize")
+  public static Object[][] specialize() {
+    return new Object[][] {{false}, {true}};
+  }
+
+  @DataProvider(name = "withMessageAndSpecialize")
+  public static Object[][] withMessageAndSpecialize() {
+    return new Object[][] {{false, false}, {true, false}, {false, true}, {true, true}};
+  }
+
+  @Test(dataProvider = "withMessageAndSpecialize")
+  void testDropMergeDrop(boolean withMessage, boolean specialize) throws Exception {
+    List<TransformStep> steps =
+        Arrays.asList(
+            new DropFieldStep(
+                Collections.singletonList("keyField1"), Collections.singletonList("valueField1")),
+            new MergeKeyValueStep(),
+            new DropFieldStep(new ArrayList<>(), Collections.singletonList("keyField2")));
+
+    Utils.TestTypedMessageBuilder<?> message =
+        Utils.process(
+            Utils.createTestAvroKeyValueRecord(withMessage),
+            new FusedStructuralStep(steps, specialize));
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertEquals(keyAvroRecord.toString(), "{\"keyField2\": \"key2\", \"keyField3\": \"key3\"}");
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        valueAvroRecord.toString(),
+        "{\"keyField3\": \"key3\", \"valueField2\": \"value2\", \"valueField3\": \"value3\"}");
+
+    // The fused step produces the same output as the steps applied one by one
+    Utils.TestTypedMessageBuilder<?> expected =
+        Utils.process(
+            Utils.createTestAvroKeyValueRecord(withMessage),
+            transformContext -> {
+              for (TransformStep step : steps) {
+                step.process(transformContext);
+              }
+            });
+    KeyValueSchema expectedSchema = (KeyValueSchema) expected.getSchema();
+    KeyValue expectedValue = (KeyValue) expected.getValue();
+    assertEquals(
+        messageSchema.getKeySchema().getSchemaInfo(),
+        expectedSchema.getKeySchema().getSchemaInfo());
+    assertEquals(
+        messageSchema.getValueSchema().getSchemaInfo(),
+        expectedSchema.getValueSchema().getSchemaInfo());
+    assertEquals(messageValue.getKey(), expectedValue.getKey());
+    assertEquals(messageValue.getValue(), expectedValue.getValue());
+  }
+
+  @Test(dataProvider = "withMessage")
+  void testMergeOnly(boolean withMessage) throws Exception {
+    List<TransformStep> steps =
+        Arrays.asList(
+            new DropFieldStep(
+                Collections.singletonList("otherKey"), Collections.singletonList("otherValue")),
+            new MergeKeyValueStep());
+
+    Utils.TestTypedMessageBuilder<?> message =
+        Utils.process(
+            Utils.createTestAvroKeyValueRecord(withMessage), new FusedStructuralStep(steps));
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    // The key is not modified
+    assertEquals(messageSchema.getKeySchema().getSchemaInfo().getType(), SchemaType.AVRO);
+    assertTrue(messageValue.getKey() instanceof GenericRecord);
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        valueAvroRecord.toString(),
+        "{\"keyField1\": \"key1\", \"keyField2\": \"key2\", \"keyField3\": \"key3\", "
+            + "\"valueField1\": \"value1\", \"valueField2\": \"value2\", \"valueField3\": "
+            + "\"value3\"}");
+  }
+
+  @Test(dataProvider = "withMessageAndSpecialize")
+  void testDropAndMergeOverlappingFields(boolean withMessage, boolean specialize) throws Exception {
+    // The id field has different schemas in the key and the value so the value can't be spliced
+    RecordSchemaBuilder keySchemaBuilder = SchemaBuilder.record("record");
+    keySchemaBuilder.field("id").type(SchemaType.STRING).required();
+    keySchemaBuilder.field("keyField").type(SchemaType.STRING);
+    keySchemaBuilder.field("keyExtra").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> keySchema =
+        Schema.generic(keySchemaBuilder.build(SchemaType.AVRO));
+
+    RecordSchemaBuilder valueSchemaBuilder = SchemaBuilder.record("record");
+    valueSchemaBuilder.field("valueField").type(SchemaType.STRING);
+    valueSchemaBuilder.field("id").type(SchemaType.STRING).optional();
+    valueSchemaBuilder.field("valueExtra").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> valueSchema =
+        Schema.generic(valueSchemaBuilder.build(SchemaType.AVRO));
+
+    GenericRecord keyRecord =
+        keySchema
+            .newRecordBuilder()
+            .set("id", "keyId")
+            .set("keyField", "key")
+            .set("keyExtra", "keyExtra")
+            .build();
+    GenericRecord valueRecord =
+        valueSchema
+            .newRecordBuilder()
+            .set("valueField", "value")
+            .set("id", "valueId")
+            .set("valueExtra", "valueExtra")
+            .build();
+    Message<GenericObject> inputMessage =
+        withMessage
+            ? Utils.createTestMessage(
+                TransformContext.serializeGenericRecord(
+                    (org.apache.avro.generic.GenericRecord) keyRecord.getNativeObject()),
+                TransformContext.serializeGenericRecord(
+                    (org.apache.avro.generic.GenericRecord) valueRecord.getNativeObject()))
+            : null;
+    Record<GenericObject> record =
+        new Utils.TestRecord<>(
+            Schema.KeyValue(keySchema, valueSchema, KeyValueEncodingType.SEPARATED),
+            AutoConsumeSchema.wrapPrimitiveObject(
+                new KeyValue<>(keyRecord, valueRecord), SchemaType.KEY_VALUE, new byte[] {}),
+            null,
+            inputMessage);
+    List<TransformStep> steps =
+        Arrays.asList(
+            new DropFieldStep(
+                Collections.singletonList("keyExtra"), Collections.singletonList("valueExtra")),
+            new MergeKeyValueStep());
+
+    Utils.TestTypedMessageBuilder<?> message =
+        Utils.process(record, new FusedStructuralStep(steps, specialize));
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertEquals(keyAvroRecord.toString(), "{\"id\": \"keyId\", \"keyField\": \"key\"}");
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        valueAvroRecord.toString(),
+        "{\"keyField\": \"key\", \"valueField\": \"value\", \"id\": \"keyId\"}");
+  }
+
+  @DataProvider(name = "unreadableValues")
+  public static Object[][] unreadableValues() throws Exception {
+    // Written with an older schema that only has the valueField field
+    RecordSchemaBuilder writerSchemaBuilder = SchemaBuilder.record("record");
+    writerSchemaBuilder.field("valueField").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> writerSchema =
+        Schema.generic(writerSchemaBuilder.build(SchemaType.AVRO));
+    GenericRecord writerRecord = writerSchema.newRecordBuilder().set("valueField", "value").build();
+    return new Object[][] {
+      {
+        TransformContext.serializeGenericRecord(
+            (org.apache.avro.generic.GenericRecord) writerRecord.getNativeObject())
+      },
+      // A negative length for the valueField string
+      {new byte[] {1}}
+    };
+  }
+
+  @Test(dataProvider = "unreadableValues")
+  void testDropAndMergeWithUnreadableValue(byte[] valueBytes) throws Exception {
+    // The id field has different schemas in the key and the value so the value can't be spliced
+    RecordSchemaBuilder keySchemaBuilder = SchemaBuilder.record("record");
+    keySchemaBuilder.field("id").type(SchemaType.STRING).required();
+    keySchemaBuilder.field("keyField").type(SchemaType.STRING);
+    keySchemaBuilder.field("keyExtra").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> keySchema =
+        Schema.generic(keySchemaBuilder.build(SchemaType.AVRO));
+
+    RecordSchemaBuilder valueSchemaBuilder = SchemaBuilder.record("record");
+    valueSchemaBuilder.field("valueField").type(SchemaType.STRING);
+    valueSchemaBuilder.field("id").type(SchemaType.STRING).optional();
+    valueSchemaBuilder.field("valueExtra").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> valueSchema =
+        Schema.generic(valueSchemaBuilder.build(SchemaType.AVRO));
+
+    GenericRecord keyRecord =
+        keySchema
+            .newRecordBuilder()
+            .set("id", "keyId")
+            .set("keyField", "key")
+            .set("keyExtra", "keyExtra")
+            .build();
+    GenericRecord valueRecord =
+        valueSchema
+            .newRecordBuilder()
+            .set("valueField", "value")
+            .set("id", "valueId")
+            .set("valueExtra", "valueExtra")
+            .build();
+    Message<GenericObject> inputMessage =
+        Utils.createTestMessage(
+            TransformContext.serializeGenericRecord(
+                (org.apache.avro.generic.GenericRecord) keyRecord.getNativeObject()),
+            valueBytes);
+    Record<GenericObject> record =
+        new Utils.TestRecord<>(
+            Schema.KeyValue(keySchema, valueSchema, KeyValueEncodingType.SEPARATED),
+            AutoConsumeSchema.wrapPrimitiveObject(
+                new KeyValue<>(keyRecord, valueRecord), SchemaType.KEY_VALUE, new byte[] {}),
+            null,
+            inputMessage);
+    List<TransformStep> steps =
+        Arrays.asList(
+            new DropFieldStep(
+                Collections.singletonList("keyExtra"), Collections.singletonList("valueExtra")),
+            new MergeKeyValueStep());
+
+    // The projected read of the value bytes fails so the decoded records are used
+    Utils.TestTypedMessageBuilder<?> message =
+        Utils.process(record, new FusedStructuralStep(steps));
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertEquals(keyAvroRecord.toString(), "{\"id\": \"keyId\", \"keyField\": \"key\"}");
+    GenericData.Record valueAvroRecord =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        valueAvroRecord.toString(),
+        "{\"keyField\": \"key\", \"valueField\": \"value\", \"id\": \"keyId\"}");
+  }
+
+  @Test(dataProvider = "specialize")
+  void testAvroValue(boolean specialize) throws Exception {
+    RecordSchemaBuilder recordSchemaBuilder = SchemaBuilder.record("record");
+    recordSchemaBuilder.field("firstName").type(SchemaType.STRING);
+    recordSchemaBuilder.field("lastName").type(SchemaType.STRING);
+    recordSchemaBuilder.field("age").type(SchemaType.INT32);
+    GenericSchema<GenericRecord> genericSchema =
+        Schema.generic(recordSchemaBuilder.build(SchemaType.AVRO));
+    GenericRecord genericRecord =
+        genericSchema
+            .newRecordBuilder()
+            .set("firstName", "Jane")
+            .set("lastName", "Doe")
+            .set("age", 42)
+            .build();
+    Record<GenericObject> record = new Utils.TestRecord<>(genericSchema, genericRecord, "test-key");
+
+    FusedStructuralStep step =
+        new FusedStructuralStep(
+            Arrays.asList(
+                new DropFieldStep(new ArrayList<>(), Collections.singletonList("firstName")),
+                new MergeKeyValueStep(),
+                new DropFieldStep(new ArrayList<>(), Collections.singletonList("lastName"))),
+            specialize);
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, step);
+
+    assertEquals(message.getKey(), "test-key");
+    GenericData.Record read = Utils.getRecord(message.getSchema(), (byte[]) message.getValue());
+    assertEquals(read.toString(), "{\"age\": 42}");
+  }
+
+  @Test
+  void testNotFusible() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new FusedStructuralStep(
+                Arrays.asList(new MergeKeyValueStep(), new UnwrapKeyValueStep(false))));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.lang3.StringUtils;
+import org.testng.annotations.Test;
+
+public class GenericRecordSerializerTest {
+
+  private static final org.apache.avro.Schema SCHEMA =
+      SchemaBuilder.record("record").fields().requiredString("name").requiredInt("age").endRecord();
+
+  @Test
+  void testSerialize() throws Exception {
+    GenericData.Record record = new GenericData.Record(SCHEMA);
+    record.put("name", "Jane");
+    record.put("age", 42);
+
+    byte[] bytes = GenericRecordSerializer.serialize(record);
+
+    assertEquals(bytes.length, 6);
+    GenericData.Record read = read(bytes);
+    assertEquals(read.get("name"), new Utf8("Jane"));
+    assertEquals(read.get("age"), 42);
+  }
+
+  @Test
+  void testSerializeReusesBuffer() throws Exception {
+    String large = StringUtils.repeat('x', 2 * 1024 * 1024);
+    GenericData.Record largeRecord = new GenericData.Record(SCHEMA);
+    largeRecord.put("name", large);
+    largeRecord.put("age", 1);
+    GenericData.Record smallRecord = new GenericData.Record(SCHEMA);
+    smallRecord.put("name", "Doe");
+    smallRecord.put("age", 2);
+
+    BufferMetrics metrics = GenericRecordSerializer.getBufferMetrics();
+
+    byte[] small = GenericRecordSerializer.serialize(smallRecord);
+    long retainedBytes = metrics.getRetainedBytes();
+    long discards = metrics.getDiscards();
+    byte[] largeBytes = GenericRecordSerializer.serialize(largeRecord);
+    byte[] smallAgain = GenericRecordSerializer.serialize(smallRecord);
+
+    assertEquals(read(largeBytes).get("name"), new Utf8(large));
+    assertEquals(smallAgain, small);
+    assertEquals(read(smallAgain).get("age"), 2);
+    // The buffer grown by the large record was dropped
+    assertEquals(metrics.getDiscards(), discards + 1);
+    assertTrue(metrics.getRetainedBytes() <= retainedBytes);
+    assertTrue(metrics.getHighWaterMark() >= largeBytes.length);
+  }
+
+  @Test
+  void testBufferOfDeadThreadNotRetained() throws Exception {
+    String name = StringUtils.repeat('x', 100 * 1024);
+    GenericData.Record record = new GenericData.Record(SCHEMA);
+    record.put("name", name);
+    record.put("age", 1);
+    BufferMetrics metrics = GenericRecordSerializer.getBufferMetrics();
+
+    AtomicLong buffers = new AtomicLong();
+    AtomicLong retainedBytes = new AtomicLong();
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                GenericRecordSerializer.serialize(record);
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+              buffers.set(metrics.getBuffers());
+              retainedBytes.set(metrics.getRetainedBytes());
+            });
+    thread.start();
+    thread.join();
+    assertTrue(buffers.get() > 0);
+
+    // The buffer of the thread is no longer counted once it is collected
+    for (int i = 0; i < 20 && metrics.getBuffers() >= buffers.get(); i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertTrue(metrics.getBuffers() < buffers.get());
+    assertTrue(metrics.getRetainedBytes() <= retainedBytes.get() - name.length());
+  }
+
+  @Test
+  void testReaderCache() throws Exception {
+    org.apache.avro.Schema schema =
+        SchemaBuilder.record("cached").fields().requiredString("name").endRecord();
+    GenericData.Record record = new GenericData.Record(schema);
+    record.put("name", "Jane");
+    byte[] bytes = GenericRecordSerializer.serialize(record);
+    CacheMetrics metrics = GenericRecordSerializer.getCacheMetrics().get("serializer.readers");
+
+    long misses = metrics.getMisses();
+    long hits = metrics.getHits();
+    GenericRecordSerializer.deserialize(schema, bytes);
+    assertEquals(metrics.getMisses(), misses + 1);
+    GenericRecordSerializer.deserialize(schema, bytes);
+    assertEquals(metrics.getMisses(), misses + 1);
+    assertEquals(metrics.getHits(), hits + 1);
+  }
+
+  @Test
+  void testDeserializeProjected() throws Exception {
+    GenericData.Record record = new GenericData.Record(SCHEMA);
+    record.put("name", "Jane");
+    record.put("age", 42);
+    org.apache.avro.Schema readerSchema =
+        SchemaBuilder.record("record").fields().requiredInt("age").endRecord();
+
+    org.apache.avro.generic.GenericRecord read =
+        GenericRecordSerializer.deserialize(
+            GenericRecordSerializer.newProjectingReader(SCHEMA, readerSchema),
+            GenericRecordSerializer.serialize(record));
+
+    assertEquals(read.getSchema(), readerSchema);
+    assertEquals(read.get("age"), 42);
+  }
+
+  private static GenericData.Record read(byte[] bytes) throws Exception {
+    return new GenericDatumReader<GenericData.Record>(SCHEMA)
+        .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+  }
+}
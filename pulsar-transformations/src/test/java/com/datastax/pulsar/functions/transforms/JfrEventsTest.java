@@ -0,0 +1,130 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.functions.api.Record;
+import org.testng.annotations.Test;
+
+public class JfrEventsTest {
+
+  private static final String PREFIX = "com.datastax.pulsar.functions.transforms.";
+
+  @Test
+  void testEvents() throws Exception {
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(PREFIX + "Step");
+      recording.enable(PREFIX + "CacheMiss");
+      recording.enable(PREFIX + "Serialization");
+      recording.start();
+      process();
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    List<RecordedEvent> stepEvents = eventsOf(events, "Step");
+    assertEquals(stepEvents.size(), 2);
+    assertEquals(stepEvents.get(0).getString("stepType"), "drop-fields");
+    assertEquals(stepEvents.get(0).getInt("stepIndex"), 0);
+    assertEquals(stepEvents.get(0).getInt("records"), 1);
+    assertTrue(stepEvents.get(0).getBoolean("modified"));
+    assertEquals(stepEvents.get(1).getString("stepType"), "cast");
+    assertEquals(stepEvents.get(1).getInt("stepIndex"), 1);
+
+    List<RecordedEvent> cacheMissEvents = eventsOf(events, "CacheMiss");
+    assertTrue(
+        cacheMissEvents
+            .stream()
+            .anyMatch(
+                event ->
+                    "step0.drop-fields.key-plans".equals(event.getString("cache"))
+                        && event.getString("key").contains(" fingerprint ")));
+
+    // The key is serialized, the value is cast to a string
+    List<RecordedEvent> serializationEvents = eventsOf(events, "Serialization");
+    assertEquals(serializationEvents.size(), 1);
+    assertTrue(serializationEvents.get(0).getString("schema").endsWith("record"));
+    assertTrue(serializationEvents.get(0).getInt("bytes") > 0);
+  }
+
+  @Test
+  void testDisabledByDefault() throws Exception {
+    List<RecordedEvent> events;
+    // The settings of a default continuous recording
+    try (Recording recording = new Recording(Configuration.getConfiguration("default"))) {
+      recording.start();
+      process();
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    assertFalse(events.stream().anyMatch(JfrEventsTest::isTransformEvent));
+  }
+
+  private static void process() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING', 'part': 'value'}"
+                + "]}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord();
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+  }
+
+  private static List<RecordedEvent> readEvents(Recording recording) throws Exception {
+    Path file = Files.createTempFile("transforms", ".jfr");
+    try {
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static List<RecordedEvent> eventsOf(List<RecordedEvent> events, String name) {
+    return events
+        .stream()
+        .filter(event -> event.getEventType().getName().equals(PREFIX + name))
+        .collect(Collectors.toList());
+  }
+
+  private static boolean isTransformEvent(RecordedEvent event) {
+    return event.getEventType().getName().startsWith(PREFIX);
+  }
+}
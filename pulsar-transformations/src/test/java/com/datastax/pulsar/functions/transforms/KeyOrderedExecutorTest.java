@@ -0,0 +1,86 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+public class KeyOrderedExecutorTest {
+
+  @Test
+  void testOrderPerKey() throws Exception {
+    KeyOrderedExecutor executor = new KeyOrderedExecutor(4, 2);
+    Map<String, List<Integer>> processed = new HashMap<>();
+    for (int k = 0; k < 10; k++) {
+      processed.put("key" + k, Collections.synchronizedList(new ArrayList<>()));
+    }
+    for (int i = 0; i < 100; i++) {
+      for (int k = 0; k < 10; k++) {
+        int sequence = i;
+        List<Integer> keyProcessed = processed.get("key" + k);
+        executor.execute("key" + k, () -> keyProcessed.add(sequence));
+      }
+    }
+    assertTrue(executor.shutdown(10_000));
+
+    for (List<Integer> keyProcessed : processed.values()) {
+      assertEquals(keyProcessed.size(), 100);
+      for (int i = 0; i < 100; i++) {
+        assertEquals(keyProcessed.get(i).intValue(), i);
+      }
+    }
+  }
+
+  @Test
+  void testOrderWithoutKey() throws Exception {
+    KeyOrderedExecutor executor = new KeyOrderedExecutor(4, 2);
+    List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 100; i++) {
+      int sequence = i;
+      executor.execute(null, () -> processed.add(sequence));
+    }
+    assertTrue(executor.shutdown(10_000));
+
+    assertEquals(processed.size(), 100);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(processed.get(i).intValue(), i);
+    }
+  }
+
+  @Test
+  void testLanes() throws Exception {
+    KeyOrderedExecutor executor = new KeyOrderedExecutor(4, 2);
+    assertEquals(executor.laneOf("key"), executor.laneOf("key"));
+    // Records without a key all go to the first lane
+    assertEquals(executor.laneOf(null), 0);
+    assertEquals(executor.laneOf(null), 0);
+    assertTrue(executor.shutdown(10_000));
+  }
+
+  @Test
+  void testInvalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new KeyOrderedExecutor(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new KeyOrderedExecutor(1, 0));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  void testBuckets() {
+    long previousHighest = -1;
+    for (int i = 0; LatencyHistogram.highestValueOf(i) != Long.MAX_VALUE; i++) {
+      long highest = LatencyHistogram.highestValueOf(i);
+      assertEquals(LatencyHistogram.indexOf(previousHighest + 1), i);
+      assertEquals(LatencyHistogram.indexOf(highest), i);
+      // The bucket width is at most 1/16th of its values
+      assertTrue(highest - previousHighest <= Math.max(1, (previousHighest + 1) / 16));
+      previousHighest = highest;
+    }
+  }
+
+  @Test
+  void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+    assertEquals(snapshot.getTotalCount(), 1000);
+    assertWithinPrecision(snapshot.getValueAtQuantile(0.5), 500_000);
+    assertWithinPrecision(snapshot.getValueAtQuantile(0.99), 990_000);
+    assertWithinPrecision(snapshot.getMaxValue(), 1_000_000);
+
+    // The snapshot starts a new interval
+    histogram.record(10);
+    snapshot = histogram.snapshotAndReset();
+    assertEquals(snapshot.getTotalCount(), 1);
+    assertEquals(snapshot.getValueAtQuantile(0.5), 10);
+    assertEquals(histogram.snapshotAndReset().getTotalCount(), 0);
+  }
+
+  private static void assertWithinPrecision(long actual, long expected) {
+    assertTrue(
+        actual >= expected && actual <= expected + expected / 16,
+        actual + " not within the precision of " + expected);
+  }
+}
@@ -18,17 +18,25 @@ package com.datastax.pulsar.functions.transforms;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
+import java.util.HashMap;
 import org.apache.avro.generic.GenericData;
+import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.schema.GenericObject;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
 import org.apache.pulsar.client.api.schema.KeyValueSchema;
+import org.apache.pulsar.client.api.schema.RecordSchemaBuilder;
+import org.apache.pulsar.client.api.schema.SchemaBuilder;
 import org.apache.pulsar.client.impl.schema.AutoConsumeSchema;
 import org.apache.pulsar.common.schema.KeyValue;
 import org.apache.pulsar.common.schema.KeyValueEncodingType;
 import org.apache.pulsar.common.schema.SchemaType;
 import org.apache.pulsar.functions.api.Record;
 import org.junit.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 public class MergeKeyValueStepTest {
@@ -53,6 +61,82 @@ public class MergeKeyValueStepTest {
     assertSame(messageValue.getKey(), recordValue.getKey());
   }
 
+  @Test
+  void testKeyValueAvroBytes() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, new HashMap<>());
+    TransformContext transformContext =
+        new TransformContext(context, record.getValue().getNativeObject());
+    new MergeKeyValueStep().process(transformContext);
+
+    // The merged value is spliced from the encoded key and value of the input message
+    assertEquals(
+        transformContext.getValueAvroBytes().length,
+        record.getMessage().get().getKeyBytes().length
+            + record.getMessage().get().getData().length);
+
+    transformContext.send();
+    Utils.TestTypedMessageBuilder<?> message = context.getOutputMessage();
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record read =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        read.toString(),
+        "{\"keyField1\": \"key1\", \"keyField2\": \"key2\", \"keyField3\": \"key3\", "
+            + "\"valueField1\": \"value1\", \"valueField2\": \"value2\", \"valueField3\": \"value3\"}");
+  }
+
+  @DataProvider(name = "withMessage")
+  public static Object[][] withMessage() {
+    return new Object[][] {{false}, {true}};
+  }
+
+  @Test(dataProvider = "withMessage")
+  void testKeyValueAvroOverlappingFields(boolean withMessage) throws Exception {
+    RecordSchemaBuilder keySchemaBuilder = SchemaBuilder.record("record");
+    keySchemaBuilder.field("id").type(SchemaType.STRING);
+    keySchemaBuilder.field("keyField").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> keySchema =
+        Schema.generic(keySchemaBuilder.build(SchemaType.AVRO));
+
+    RecordSchemaBuilder valueSchemaBuilder = SchemaBuilder.record("record");
+    valueSchemaBuilder.field("valueField").type(SchemaType.STRING);
+    valueSchemaBuilder.field("id").type(SchemaType.STRING);
+    GenericSchema<GenericRecord> valueSchema =
+        Schema.generic(valueSchemaBuilder.build(SchemaType.AVRO));
+
+    GenericRecord keyRecord =
+        keySchema.newRecordBuilder().set("id", "keyId").set("keyField", "key").build();
+    GenericRecord valueRecord =
+        valueSchema.newRecordBuilder().set("valueField", "value").set("id", "valueId").build();
+    Message<GenericObject> inputMessage =
+        withMessage
+            ? Utils.createTestMessage(
+                TransformContext.serializeGenericRecord(
+                    (org.apache.avro.generic.GenericRecord) keyRecord.getNativeObject()),
+                TransformContext.serializeGenericRecord(
+                    (org.apache.avro.generic.GenericRecord) valueRecord.getNativeObject()))
+            : null;
+    Record<GenericObject> record =
+        new Utils.TestRecord<>(
+            Schema.KeyValue(keySchema, valueSchema, KeyValueEncodingType.SEPARATED),
+            AutoConsumeSchema.wrapPrimitiveObject(
+                new KeyValue<>(keyRecord, valueRecord), SchemaType.KEY_VALUE, new byte[] {}),
+            null,
+            inputMessage);
+
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, new MergeKeyValueStep());
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+
+    GenericData.Record read =
+        Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+    assertEquals(
+        read.toString(), "{\"keyField\": \"key\", \"valueField\": \"value\", \"id\": \"keyId\"}");
+  }
+
   @Test
   void testPrimitive() throws Exception {
     Record<GenericObject> record =
@@ -114,4 +198,27 @@ public class MergeKeyValueStepTest {
         messageSchema.getValueSchema().getNativeSchema().get(),
         newMessageSchema.getValueSchema().getNativeSchema().get());
   }
+
+  @Test
+  void testKeySchemaEvictionsRemovePlans() {
+    MergeKeyValueStep step = new MergeKeyValueStep();
+    org.apache.avro.Schema valueSchema =
+        org.apache.avro.SchemaBuilder.record("value").fields().requiredString("value").endRecord();
+    for (int i = 0; i < AvroSchemaCache.DEFAULT_MAX_SIZE + 100; i++) {
+      org.apache.avro.Schema keySchema =
+          org.apache.avro.SchemaBuilder.record("key")
+              .fields()
+              .requiredString("key" + i)
+              .endRecord();
+      step.getPlan(keySchema, valueSchema);
+    }
+
+    CacheMetrics keySchemaMetrics = step.getCacheMetrics().get("merge-key-value.key-schemas");
+    CacheMetrics planMetrics = step.getCacheMetrics().get("merge-key-value.plans");
+    assertEquals(keySchemaMetrics.getEvictions(), 100);
+    // The plans of the evicted key schemas are not counted anymore
+    assertTrue(planMetrics.getSize() <= keySchemaMetrics.getSize());
+    // Each plan weighs its key field, its value field and 1
+    assertEquals(planMetrics.getWeight(), planMetrics.getSize() * 3);
+  }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+public class MicroBatcherTest {
+
+  @Test
+  void testFlushWhenFull() {
+    List<List<Integer>> batches = new ArrayList<>();
+    MicroBatcher<Integer> batcher = new MicroBatcher<>(2, 60_000, batches::add);
+    batcher.add(1);
+    assertTrue(batches.isEmpty());
+    batcher.add(2);
+    batcher.add(3);
+    assertEquals(batches, Arrays.asList(Arrays.asList(1, 2)));
+
+    batcher.close();
+    assertEquals(batches, Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)));
+  }
+
+  @Test
+  void testFlushAfterDelay() throws Exception {
+    BlockingQueue<List<Integer>> batches = new LinkedBlockingQueue<>();
+    MicroBatcher<Integer> batcher = new MicroBatcher<>(100, 10, batches::add);
+    batcher.add(1);
+    batcher.add(2);
+    assertEquals(batches.poll(10, TimeUnit.SECONDS), Arrays.asList(1, 2));
+    batcher.close();
+    assertTrue(batches.isEmpty());
+  }
+
+  @Test(timeOut = 10_000)
+  void testAddWhileHandling() throws Exception {
+    CountDownLatch handling = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    MicroBatcher<Integer> batcher =
+        new MicroBatcher<>(
+            2,
+            60_000,
+            batch -> {
+              handling.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              batches.add(batch);
+            });
+    Thread thread =
+        new Thread(
+            () -> {
+              batcher.add(1);
+              batcher.add(2);
+            });
+    thread.start();
+    assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+    // The first batch is being handled by the other thread
+    batcher.add(3);
+    assertTrue(batches.isEmpty());
+    release.countDown();
+    thread.join();
+    batcher.close();
+    assertEquals(batches, Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)));
+  }
+
+  @Test
+  void testInvalidBounds() {
+    assertThrows(IllegalArgumentException.class, () -> new MicroBatcher<>(0, 10, batch -> {}));
+    assertThrows(IllegalArgumentException.class, () -> new MicroBatcher<>(10, 0, batch -> {}));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.KeyValueSchema;
+import org.apache.pulsar.client.impl.TypedMessageBuilderImpl;
+import org.apache.pulsar.common.schema.KeyValue;
+import org.apache.pulsar.common.schema.KeyValueEncodingType;
+import org.testng.annotations.Test;
+
+public class OutputSchemasTest {
+
+  private static final String AVRO_SCHEMA =
+      "{\"type\":\"record\",\"name\":\"record\",\"fields\":[{\"name\":\"field\",\"type\":\"string\"}]}";
+
+  @Test
+  void testNativeAvro() {
+    org.apache.avro.Schema avroSchema = new org.apache.avro.Schema.Parser().parse(AVRO_SCHEMA);
+    Schema<byte[]> schema = OutputSchemas.nativeAvro(avroSchema);
+
+    assertSame(schema.getNativeSchema().get(), avroSchema);
+    assertSame(OutputSchemas.nativeAvro(avroSchema), schema);
+    assertSame(
+        OutputSchemas.nativeAvro(new org.apache.avro.Schema.Parser().parse(AVRO_SCHEMA)), schema);
+  }
+
+  @Test
+  void testKeyValue() {
+    Schema<byte[]> keySchema =
+        OutputSchemas.nativeAvro(new org.apache.avro.Schema.Parser().parse(AVRO_SCHEMA));
+    Schema<?> schema =
+        OutputSchemas.keyValue(keySchema, Schema.STRING, KeyValueEncodingType.SEPARATED);
+
+    KeyValueSchema<?, ?> keyValueSchema = (KeyValueSchema<?, ?>) schema;
+    assertSame(keyValueSchema.getKeySchema(), keySchema);
+    assertSame(keyValueSchema.getValueSchema(), Schema.STRING);
+    assertEquals(keyValueSchema.getKeyValueEncodingType(), KeyValueEncodingType.SEPARATED);
+    assertSame(
+        OutputSchemas.keyValue(keySchema, Schema.STRING, KeyValueEncodingType.SEPARATED), schema);
+    assertNotSame(
+        OutputSchemas.keyValue(keySchema, Schema.STRING, KeyValueEncodingType.INLINE), schema);
+    assertNotSame(
+        OutputSchemas.keyValue(keySchema, Schema.INT32, KeyValueEncodingType.SEPARATED), schema);
+  }
+
+  @Test
+  void testPassThrough() {
+    Schema<byte[]> schema = OutputSchemas.passThrough(Schema.STRING);
+
+    assertSame(schema.getSchemaInfo(), Schema.STRING.getSchemaInfo());
+    assertSame(OutputSchemas.passThrough(Schema.STRING), schema);
+  }
+
+  @Test
+  void testPassThroughKeyValue() {
+    KeyValueSchema<String, String> inputSchema =
+        (KeyValueSchema<String, String>)
+            Schema.KeyValue(Schema.STRING, Schema.STRING, KeyValueEncodingType.SEPARATED);
+    Schema<KeyValue<byte[], byte[]>> schema = OutputSchemas.passThroughKeyValue(inputSchema);
+
+    assertSame(schema.getSchemaInfo(), inputSchema.getSchemaInfo());
+    assertSame(OutputSchemas.passThroughKeyValue(inputSchema), schema);
+    byte[] key = inputSchema.getKeySchema().encode("key");
+    byte[] value = inputSchema.getValueSchema().encode("value");
+    TypedMessageBuilderImpl<KeyValue<byte[], byte[]>> builder =
+        new TypedMessageBuilderImpl<>(null, schema);
+    builder.value(new KeyValue<>(key, value));
+    Message<KeyValue<byte[], byte[]>> message = builder.getMessage();
+    assertEquals(message.getKeyBytes(), key);
+    assertEquals(message.getData(), value);
+  }
+
+  @Test
+  void testPassThroughInlineKeyValue() {
+    KeyValueSchema<String, String> inputSchema =
+        (KeyValueSchema<String, String>)
+            Schema.KeyValue(Schema.STRING, Schema.STRING, KeyValueEncodingType.INLINE);
+    Schema<KeyValue<byte[], byte[]>> schema = OutputSchemas.passThroughKeyValue(inputSchema);
+
+    byte[] payload = inputSchema.encode(new KeyValue<>("key", "value"));
+    TypedMessageBuilderImpl<KeyValue<byte[], byte[]>> builder =
+        new TypedMessageBuilderImpl<>(null, schema);
+    builder.value(new KeyValue<>(null, payload));
+    Message<KeyValue<byte[], byte[]>> message = builder.getMessage();
+    assertEquals(message.getData(), payload);
+    assertEquals(inputSchema.decode(message.getData()), new KeyValue<>("key", "value"));
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.lang.ref.WeakReference;
+import java.util.function.BiFunction;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.testng.annotations.Test;
+
+public class RecordCopiersTest {
+
+  private static final Schema KEY_SCHEMA =
+      SchemaBuilder.record("key").fields().requiredString("a").requiredInt("b").endRecord();
+  private static final Schema VALUE_SCHEMA =
+      SchemaBuilder.record("value").fields().requiredString("c").requiredLong("d").endRecord();
+  private static final Schema OUTPUT_SCHEMA =
+      SchemaBuilder.record("output")
+          .fields()
+          .requiredLong("d")
+          .requiredString("a")
+          .requiredString("c")
+          .endRecord();
+
+  @Test
+  void testCopy() {
+    BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier =
+        RecordCopiers.generate(
+            new int[] {AvroRecordSplicer.SECOND, AvroRecordSplicer.FIRST, AvroRecordSplicer.SECOND},
+            new int[] {1, 0, 0});
+    assertNotNull(copier);
+
+    GenericData.Record record = new GenericData.Record(OUTPUT_SCHEMA);
+    assertSame(copier.apply(record, records()), record);
+    assertEquals(record.toString(), "{\"d\": 42, \"a\": \"a\", \"c\": \"c\"}");
+  }
+
+  @Test
+  void testClassPerCopier() {
+    BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier1 =
+        RecordCopiers.generate(new int[] {AvroRecordSplicer.FIRST}, new int[] {0});
+    BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier2 =
+        RecordCopiers.generate(new int[] {AvroRecordSplicer.FIRST}, new int[] {0});
+
+    assertEquals(copier1.getClass().getName(), RecordCopier.class.getName());
+    assertNotEquals(copier1.getClass(), RecordCopier.class);
+    assertNotEquals(copier1.getClass(), copier2.getClass());
+  }
+
+  @Test
+  void testCopierClassUnloaded() throws Exception {
+    WeakReference<ClassLoader> classLoader = copierClassLoader();
+
+    for (int i = 0; i < 20 && classLoader.get() != null; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertNull(classLoader.get());
+  }
+
+  @Test
+  void testTooManyFields() {
+    int[] inputs = new int[RecordCopiers.MAX_FIELDS + 1];
+    int[] positions = new int[RecordCopiers.MAX_FIELDS + 1];
+    assertNull(RecordCopiers.generate(inputs, positions));
+  }
+
+  private static WeakReference<ClassLoader> copierClassLoader() {
+    BiFunction<GenericData.Record, GenericRecord[], GenericRecord> copier =
+        RecordCopiers.generate(new int[] {AvroRecordSplicer.FIRST}, new int[] {0});
+    Schema schema = SchemaBuilder.record("output").fields().requiredString("a").endRecord();
+    copier.apply(new GenericData.Record(schema), records());
+    return new WeakReference<>(copier.getClass().getClassLoader());
+  }
+
+  private static GenericRecord[] records() {
+    GenericData.Record key = new GenericData.Record(KEY_SCHEMA);
+    key.put("a", "a");
+    key.put("b", 1);
+    GenericData.Record value = new GenericData.Record(VALUE_SCHEMA);
+    value.put("c", "c");
+    value.put("d", 42L);
+    return new GenericRecord[] {key, value};
+  }
+}
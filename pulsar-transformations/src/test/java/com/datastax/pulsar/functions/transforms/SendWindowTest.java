@@ -0,0 +1,91 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.pulsar.functions.transforms;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+public class SendWindowTest {
+
+  @Test
+  void testAcquireBlocksWhenFull() throws Exception {
+    SendWindow window = new SendWindow(2, false);
+    window.acquire();
+    window.acquire();
+    assertEquals(window.getInFlight(), 2);
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                window.acquire();
+                acquired.countDown();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    thread.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+    window.release(1000);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    thread.join();
+    assertEquals(window.getInFlight(), 2);
+  }
+
+  @Test
+  void testAwaitEmpty() throws Exception {
+    SendWindow window = new SendWindow(2, false);
+    window.acquire();
+    assertFalse(window.awaitEmpty(10));
+    window.cancel();
+    assertTrue(window.awaitEmpty(10));
+  }
+
+  @Test
+  void testAdaptiveWindow() throws Exception {
+    SendWindow window = new SendWindow(10, true);
+    window.acquire();
+    window.release(1000);
+    assertEquals(window.getSize(), 10);
+
+    // The window shrinks while the latency is high
+    for (int i = 0; i < 100; i++) {
+      window.acquire();
+      window.release(1_000_000);
+    }
+    assertEquals(window.getSize(), 1);
+
+    // And grows back when it recovers
+    for (int i = 0; i < 100; i++) {
+      window.acquire();
+      window.release(1000);
+    }
+    assertEquals(window.getSize(), 10);
+  }
+
+  @Test
+  void testInvalidSize() {
+    assertThrows(IllegalArgumentException.class, () -> new SendWindow(0, false));
+  }
+}
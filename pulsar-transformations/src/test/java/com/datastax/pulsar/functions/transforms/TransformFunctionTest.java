@@ -21,6 +21,8 @@ import static org.testng.AssertJUnit.assertNull;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.util.Utf8;
@@ -46,6 +48,28 @@ public class TransformFunctionTest {
       {"{'steps': [{'type': 'cast', 'schema-type': 'STRING'}]}"},
       {"{'steps': [{'type': 'cast', 'schema-type': 'STRING', 'part': 'key'}]}"},
       {"{'steps': [{'type': 'cast', 'schema-type': 'STRING', 'part': 'value'}]}"},
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'specialize': true}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'auto-ack': false}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'max-in-flight': 10, 'adaptive-window': true, 'auto-ack': false}"
+      },
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'lanes': 1}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'lanes': 4, "
+            + "'lane-queue-size': 10, 'auto-ack': false}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'batch-size': 100, "
+            + "'batch-max-delay-ms': 5, 'auto-ack': false}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'reuse-objects': true, "
+            + "'send-async': true, 'auto-ack': false}"
+      },
     };
   }
 
@@ -75,6 +99,50 @@ public class TransformFunctionTest {
       {"{'steps': [{'type': 'cast', 'schema-type': 'INVALID'}]}"},
       {"{'steps': [{'type': 'cast', 'schema-type': 'STRING', 'part': 'invalid'}]}"},
       {"{'steps': [{'type': 'cast', 'schema-type': 'STRING', 'part': 42}]}"},
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'specialize': 'invalid'}"},
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': 'invalid'}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'max-in-flight': 0, 'auto-ack': false}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'max-in-flight': 1.5, 'auto-ack': false}"
+      },
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'lanes': 'invalid'}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'lanes': 4, "
+            + "'lane-queue-size': 0, 'auto-ack': false}"
+      },
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'batch-size': 'invalid'}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'batch-size': 100, "
+            + "'batch-max-delay-ms': 0, 'auto-ack': false}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'batch-size': 100, "
+            + "'lanes': 4, 'auto-ack': false}"
+      },
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true}"},
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'lanes': 4}"},
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'batch-size': 100}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'auto-ack': true}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'send-async': true, "
+            + "'auto-ack': 'invalid'}"
+      },
+      {"{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'reuse-objects': 'invalid'}"},
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'reuse-objects': true, "
+            + "'lanes': 4}"
+      },
+      {
+        "{'steps': [{'type': 'drop-fields', 'fields': 'some-field'}], 'reuse-objects': true, "
+            + "'batch-size': 100}"
+      },
     };
   }
 
@@ -127,6 +195,315 @@ public class TransformFunctionTest {
     assertNull(valueAvroRecord.getSchema().getField("valueField3"));
   }
 
+  @Test
+  void testSendAsync() throws Exception {
+    String userConfig =
+        ("{'steps': [{'type': 'drop-fields', 'fields': 'keyField1'}], 'send-async': true, "
+                + "'auto-ack': false}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Utils.TestRecord<GenericObject> record =
+        (Utils.TestRecord<GenericObject>) Utils.createTestAvroKeyValueRecord();
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+    assertEquals(record.getAckCount(), 0);
+
+    context.getOutputMessage().getSendFuture().complete(null);
+    assertEquals(record.getAckCount(), 1);
+    assertEquals(record.getFailCount(), 0);
+    transformFunction.close();
+  }
+
+  @Test
+  void testSendAsyncFailed() throws Exception {
+    String userConfig = ("{'steps': [], 'send-async': true, 'auto-ack': false}").replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Utils.TestRecord<GenericObject> record =
+        (Utils.TestRecord<GenericObject>) Utils.createTestAvroKeyValueRecord();
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+
+    context.getOutputMessage().getSendFuture().completeExceptionally(new RuntimeException("test"));
+    assertEquals(record.getAckCount(), 0);
+    assertEquals(record.getFailCount(), 1);
+  }
+
+  @Test
+  void testLanes() throws Exception {
+    String userConfig =
+        ("{'steps': [{'type': 'drop-fields', 'fields': 'keyField1'}], 'lanes': 2, "
+                + "'auto-ack': false}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Utils.TestRecord<GenericObject> record =
+        (Utils.TestRecord<GenericObject>) Utils.createTestAvroKeyValueRecord();
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+    transformFunction.close();
+
+    Utils.TestTypedMessageBuilder<?> message = context.getOutputMessage();
+    KeyValueSchema messageSchema = (KeyValueSchema) message.getSchema();
+    KeyValue messageValue = (KeyValue) message.getValue();
+    GenericData.Record keyAvroRecord =
+        Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+    assertNull(keyAvroRecord.getSchema().getField("keyField1"));
+    assertEquals(record.getAckCount(), 1);
+  }
+
+  @Test
+  void testBatch() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1,valueField3'},"
+                + "    {'type': 'merge-key-value'},"
+                + "    {'type': 'unwrap-key-value'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING'}"
+                + "], 'batch-size': 2, 'batch-max-delay-ms': 60000, 'auto-ack': false}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+    transformFunction.initialize(new Utils.TestContext(null, config));
+
+    Utils.TestRecord<GenericObject> record1 =
+        (Utils.TestRecord<GenericObject>) Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context1 = new Utils.TestContext(record1, config);
+    transformFunction.process(record1.getValue(), context1);
+    assertNull(context1.getOutputMessage());
+
+    Utils.TestRecord<GenericObject> record2 =
+        (Utils.TestRecord<GenericObject>) Utils.createTestAvroKeyValueRecord();
+    Utils.TestContext context2 = new Utils.TestContext(record2, config);
+    transformFunction.process(record2.getValue(), context2);
+
+    String expected =
+        "{\"keyField2\": \"key2\", \"keyField3\": \"key3\", \"valueField1\": "
+            + "\"value1\", \"valueField2\": \"value2\"}";
+    assertEquals(context1.getOutputMessage().getValue(), expected);
+    assertEquals(context2.getOutputMessage().getValue(), expected);
+    assertEquals(record1.getAckCount(), 1);
+    assertEquals(record2.getAckCount(), 1);
+    transformFunction.close();
+  }
+
+  @Test
+  void testReuseObjects() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1,valueField3'},"
+                + "    {'type': 'merge-key-value'},"
+                + "    {'type': 'unwrap-key-value'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING'}"
+                + "], 'reuse-objects': true}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+    Utils.TestContext context = new Utils.TestContext(null, config);
+    transformFunction.initialize(context);
+
+    String expected =
+        "{\"keyField2\": \"key2\", \"keyField3\": \"key3\", \"valueField1\": "
+            + "\"value1\", \"valueField2\": \"value2\"}";
+    // The records built for the first record are overwritten by the following ones
+    for (boolean withMessage : new boolean[] {false, true, false}) {
+      Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(withMessage);
+      context.setCurrentRecord(record);
+      transformFunction.process(record.getValue(), context);
+      assertEquals(context.getOutputMessage().getValue(), expected);
+    }
+  }
+
+  @Test
+  void testReuseObjectsWithSendsInFlight() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1,valueField3'},"
+                + "    {'type': 'merge-key-value'}"
+                + "], 'reuse-objects': true, 'send-async': true, 'auto-ack': false}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+    Utils.TestContext context = new Utils.TestContext(null, config);
+    transformFunction.initialize(context);
+
+    // The records built for each record are overwritten by the following ones
+    boolean[] withMessages = {false, true, false, false};
+    List<Utils.TestRecord<GenericObject>> records = new ArrayList<>();
+    List<Utils.TestTypedMessageBuilder<?>> messages = new ArrayList<>();
+    for (int i = 0; i < withMessages.length; i++) {
+      Utils.TestRecord<GenericObject> record =
+          (Utils.TestRecord<GenericObject>)
+              Utils.createTestAvroKeyValueRecord(withMessages[i], "-" + i);
+      context.setCurrentRecord(record);
+      transformFunction.process(record.getValue(), context);
+      records.add(record);
+      messages.add(context.getOutputMessage());
+    }
+
+    // None of the sends has completed yet, and each message still has its own key and value
+    for (int i = 0; i < messages.size(); i++) {
+      KeyValueSchema messageSchema = (KeyValueSchema) messages.get(i).getSchema();
+      KeyValue messageValue = (KeyValue) messages.get(i).getValue();
+      GenericData.Record key =
+          Utils.getRecord(messageSchema.getKeySchema(), (byte[]) messageValue.getKey());
+      assertEquals(
+          key.toString(),
+          String.format("{\"keyField2\": \"key2-%d\", \"keyField3\": \"key3-%d\"}", i, i));
+      GenericData.Record value =
+          Utils.getRecord(messageSchema.getValueSchema(), (byte[]) messageValue.getValue());
+      assertEquals(
+          value.toString(),
+          String.format(
+              "{\"keyField2\": \"key2-%d\", \"keyField3\": \"key3-%d\", \"valueField1\": "
+                  + "\"value1-%d\", \"valueField2\": \"value2-%d\"}",
+              i, i, i, i));
+      assertEquals(records.get(i).getAckCount(), 0);
+    }
+
+    for (int i = 0; i < messages.size(); i++) {
+      messages.get(i).getSendFuture().complete(null);
+      assertEquals(records.get(i).getAckCount(), 1);
+    }
+    transformFunction.close();
+  }
+
+  @Test
+  void testMetrics() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'unknownField'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING'}"
+                + "]}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+    transformFunction.process(record.getValue(), context);
+    transformFunction.close();
+
+    assertEquals(transformFunction.getStepMetrics().get(0).getInvocations(), 2);
+    assertEquals(transformFunction.getStepMetrics().get(0).getPassedThrough(), 2);
+    assertEquals(transformFunction.getStepMetrics().get(1).getModified(), 2);
+    assertEquals(transformFunction.getSendMetrics().getMessages(), 2);
+
+    Map<String, Double> metrics = context.getMetrics();
+    assertEquals(metrics.get("step0.drop-fields.passed-through"), 2.0);
+    assertNull(metrics.get("step0.drop-fields.modified"));
+    assertEquals(metrics.get("step1.cast.modified"), 2.0);
+    assertEquals(metrics.get("send.messages"), 2.0);
+    assertEquals(metrics.get("cache.step0.drop-fields.key-plans.misses"), 1.0);
+    assertEquals(metrics.get("cache.step0.drop-fields.key-plans.hits"), 1.0);
+    assertEquals(metrics.get("latency.processing-nanos.count"), 2.0);
+    assertEquals(metrics.get("latency.end-to-end-millis.count"), 2.0);
+  }
+
+  @Test
+  void testMetricsOfFusedSteps() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1'},"
+                + "    {'type': 'merge-key-value'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING'}"
+                + "]}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+    transformFunction.close();
+
+    // The drop and merge steps run fused but keep the metrics of their configured index
+    assertEquals(transformFunction.getStepMetrics().size(), 3);
+    Map<String, Double> metrics = context.getMetrics();
+    assertEquals(metrics.get("step0.drop-fields.modified"), 1.0);
+    assertEquals(metrics.get("step1.merge-key-value.modified"), 1.0);
+    assertEquals(metrics.get("step2.cast.modified"), 1.0);
+    assertEquals(metrics.get("cache.step0.fused.plans.misses"), 1.0);
+    assertEquals(metrics.get("cache.step0.drop-fields.key-plans.misses"), 1.0);
+    assertEquals(metrics.get("cache.step1.merge-key-value.plans.misses"), 1.0);
+  }
+
+  @Test
+  void testSendSerializesReplacedValue() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, null);
+    SendMetrics sendMetrics = new SendMetrics();
+
+    // A copy of the value is not the record decoded from the input, so it has no encoding
+    TransformContext transformContext =
+        new TransformContext(context, record.getValue().getNativeObject());
+    transformContext.setSendMetrics(sendMetrics);
+    GenericData.Record value = (GenericData.Record) transformContext.getValueObject();
+    transformContext.setValueObject(new GenericData.Record(value, false));
+    transformContext.setValueModified(true);
+    transformContext.send();
+    assertEquals(sendMetrics.getSerializations(), 1);
+    assertEquals(sendMetrics.getPassedThrough(), 0);
+
+    // Replacing the value by itself keeps the input encoding
+    transformContext = new TransformContext(context, record.getValue().getNativeObject());
+    transformContext.setSendMetrics(sendMetrics);
+    transformContext.setValueObject(transformContext.getValueObject());
+    transformContext.setValueModified(true);
+    transformContext.send();
+    assertEquals(sendMetrics.getSerializations(), 1);
+  }
+
+  @Test
+  void testDropMergeAndCastAvroBytes() throws Exception {
+    String userConfig =
+        (""
+                + "{'steps': ["
+                + "    {'type': 'drop-fields', 'fields': 'keyField1,valueField3'},"
+                + "    {'type': 'merge-key-value'},"
+                + "    {'type': 'unwrap-key-value'},"
+                + "    {'type': 'cast', 'schema-type': 'STRING'}"
+                + "]}")
+            .replace("'", "\"");
+    Map<String, Object> config =
+        new Gson().fromJson(userConfig, new TypeToken<Map<String, Object>>() {}.getType());
+    TransformFunction transformFunction = new TransformFunction();
+
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestContext context = new Utils.TestContext(record, config);
+    transformFunction.initialize(context);
+    transformFunction.process(record.getValue(), context);
+
+    Utils.TestTypedMessageBuilder<?> message = context.getOutputMessage();
+    assertEquals(
+        message.getValue(),
+        "{\"keyField2\": \"key2\", \"keyField3\": \"key3\", \"valueField1\": "
+            + "\"value1\", \"valueField2\": \"value2\"}");
+  }
+
   // TODO: just for demo. To be removed
   @Test
   void testRemoveMergeAndToString() throws Exception {
@@ -51,6 +51,31 @@ public class UnwrapKeyValueStepTest {
         "{\"keyField1\": \"key1\", \"keyField2\": \"key2\", \"keyField3\": \"key3\"}");
   }
 
+  @Test
+  void testKeyValueUnwrapEncodedValue() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, new UnwrapKeyValueStep(false));
+
+    assertSame(message.getValue(), record.getMessage().get().getData());
+    GenericData.Record read = Utils.getRecord(message.getSchema(), (byte[]) message.getValue());
+    assertEquals(
+        read.toString(),
+        "{\"valueField1\": \"value1\", \"valueField2\": \"value2\", \"valueField3\": "
+            + "\"value3\"}");
+  }
+
+  @Test
+  void testKeyValueUnwrapEncodedKey() throws Exception {
+    Record<GenericObject> record = Utils.createTestAvroKeyValueRecord(true);
+    Utils.TestTypedMessageBuilder<?> message = Utils.process(record, new UnwrapKeyValueStep(true));
+
+    assertSame(message.getValue(), record.getMessage().get().getKeyBytes());
+    GenericData.Record read = Utils.getRecord(message.getSchema(), (byte[]) message.getValue());
+    assertEquals(
+        read.toString(),
+        "{\"keyField1\": \"key1\", \"keyField2\": \"key2\", \"keyField3\": \"key3\"}");
+  }
+
   @Test
   void testPrimitive() throws Exception {
     Record<GenericObject> record =
@@ -16,8 +16,11 @@
 package com.datastax.pulsar.functions.transforms;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +34,7 @@ import org.apache.avro.io.Decoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.pulsar.client.admin.PulsarAdmin;
 import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.TypedMessageBuilder;
@@ -65,6 +69,23 @@ public class Utils {
   }
 
   public static Record<GenericObject> createTestAvroKeyValueRecord() {
+    return createTestAvroKeyValueRecord(false);
+  }
+
+  /**
+   * Creates a KeyValue record of AVRO key and value. If <code>withMessage</code> is true, the
+   * record also has an input message holding the encoded key and value.
+   */
+  public static Record<GenericObject> createTestAvroKeyValueRecord(boolean withMessage) {
+    return createTestAvroKeyValueRecord(withMessage, "");
+  }
+
+  /**
+   * Creates a KeyValue record of AVRO key and value like {@link
+   * #createTestAvroKeyValueRecord(boolean)}, with <code>suffix</code> appended to every field.
+   */
+  public static Record<GenericObject> createTestAvroKeyValueRecord(
+      boolean withMessage, String suffix) {
     RecordSchemaBuilder keySchemaBuilder =
         org.apache.pulsar.client.api.schema.SchemaBuilder.record("record");
     keySchemaBuilder.field("keyField1").type(SchemaType.STRING);
@@ -84,17 +105,17 @@ public class Utils {
     GenericRecord keyRecord =
         keySchema
             .newRecordBuilder()
-            .set("keyField1", "key1")
-            .set("keyField2", "key2")
-            .set("keyField3", "key3")
+            .set("keyField1", "key1" + suffix)
+            .set("keyField2", "key2" + suffix)
+            .set("keyField3", "key3" + suffix)
             .build();
 
     GenericRecord valueRecord =
         valueSchema
             .newRecordBuilder()
-            .set("valueField1", "value1")
-            .set("valueField2", "value2")
-            .set("valueField3", "value3")
+            .set("valueField1", "value1" + suffix)
+            .set("valueField2", "value2" + suffix)
+            .set("valueField3", "value3" + suffix)
             .build();
 
     Schema<KeyValue<GenericRecord, GenericRecord>> keyValueSchema =
@@ -115,18 +136,74 @@ public class Utils {
           }
         };
 
-    return new TestRecord<>(keyValueSchema, genericObject, null);
+    if (!withMessage) {
+      return new TestRecord<>(keyValueSchema, genericObject, null);
+    }
+    try {
+      Message<GenericObject> message =
+          createTestMessage(
+              TransformContext.serializeGenericRecord(
+                  (org.apache.avro.generic.GenericRecord) keyRecord.getNativeObject()),
+              TransformContext.serializeGenericRecord(
+                  (org.apache.avro.generic.GenericRecord) valueRecord.getNativeObject()));
+      return new TestRecord<>(keyValueSchema, genericObject, null, message);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Creates an input message with the given key bytes and payload. */
+  @SuppressWarnings("unchecked")
+  public static Message<GenericObject> createTestMessage(byte[] keyBytes, byte[] data) {
+    long publishTime = System.currentTimeMillis();
+    return (Message<GenericObject>)
+        Proxy.newProxyInstance(
+            Utils.class.getClassLoader(),
+            new Class<?>[] {Message.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getData":
+                  return data;
+                case "hasKey":
+                case "hasBase64EncodedKey":
+                  return keyBytes != null;
+                case "getKeyBytes":
+                  return keyBytes;
+                case "getProperties":
+                  return Collections.emptyMap();
+                case "getSchemaVersion":
+                  return null;
+                case "getPublishTime":
+                  return publishTime;
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "TestMessage";
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
   }
 
   public static class TestRecord<T> implements Record<T> {
     private final Schema schema;
     private final T value;
     private final String key;
+    private final Message<T> message;
+    private int ackCount;
+    private int failCount;
 
     public TestRecord(Schema schema, T value, String key) {
+      this(schema, value, key, null);
+    }
+
+    public TestRecord(Schema schema, T value, String key, Message<T> message) {
       this.schema = schema;
       this.value = value;
       this.key = key;
+      this.message = message;
     }
 
     @Override
@@ -143,12 +220,36 @@ public class Utils {
     public T getValue() {
       return value;
     }
+
+    @Override
+    public Optional<Message<T>> getMessage() {
+      return Optional.ofNullable(message);
+    }
+
+    @Override
+    public void ack() {
+      ackCount++;
+    }
+
+    @Override
+    public void fail() {
+      failCount++;
+    }
+
+    public int getAckCount() {
+      return ackCount;
+    }
+
+    public int getFailCount() {
+      return failCount;
+    }
   }
 
   public static class TestContext implements Context {
     private Record<?> currentRecord;
     private final Map<String, Object> userConfig;
     private TestTypedMessageBuilder<?> outputMessage;
+    private final Map<String, Double> metrics = new HashMap<>();
 
     public TestContext(Record<?> currentRecord, Map<String, Object> userConfig) {
       this.currentRecord = currentRecord;
@@ -315,7 +416,14 @@ public class Utils {
     }
 
     @Override
-    public void recordMetric(String metricName, double value) {}
+    public void recordMetric(String metricName, double value) {
+      metrics.merge(metricName, value, Double::sum);
+    }
+
+    /** Returns the sum of the values recorded for each metric. */
+    public Map<String, Double> getMetrics() {
+      return metrics;
+    }
   }
 
   public static class TestTypedMessageBuilder<T> implements TypedMessageBuilder<T> {
@@ -323,7 +431,9 @@ public class Utils {
     private final Schema<T> schema;
     private T value;
     private String key;
+    private byte[] keyBytes;
     private Map<String, String> properties = new HashMap<>();
+    private final CompletableFuture<MessageId> sendFuture = new CompletableFuture<>();
 
     private TestTypedMessageBuilder(String topic, Schema<T> schema) {
       this.topic = topic;
@@ -337,7 +447,7 @@ public class Utils {
 
     @Override
     public CompletableFuture<MessageId> sendAsync() {
-      return null;
+      return sendFuture;
     }
 
     @Override
@@ -348,6 +458,7 @@ public class Utils {
 
     @Override
     public TestTypedMessageBuilder<T> keyBytes(byte[] key) {
+      this.keyBytes = key;
       return this;
     }
 
@@ -417,6 +528,10 @@ public class Utils {
       return key;
     }
 
+    public byte[] getKeyBytes() {
+      return keyBytes;
+    }
+
     public Map<String, String> getProperties() {
       return properties;
     }
@@ -428,5 +543,10 @@ public class Utils {
     public Schema<T> getSchema() {
       return schema;
     }
+
+    /** The future returned by {@link #sendAsync()}, for the test to complete. */
+    public CompletableFuture<MessageId> getSendFuture() {
+      return sendFuture;
+    }
   }
 }